@@ -26,9 +26,12 @@ import com.fapr.bluetoothcontrol.api.RequestInterface;
 import com.fapr.bluetoothcontrol.api.RetrofitClient;
 import com.fapr.bluetoothcontrol.databinding.ActivityDoorControlBinding;
 import com.fapr.bluetoothcontrol.databinding.DialogCodeBinding;
+import com.fapr.bluetoothcontrol.models.DoorResponseModel;
 import com.fapr.bluetoothcontrol.models.LogModel;
 import com.fapr.bluetoothcontrol.models.TimeSyncModel;
+import com.fapr.bluetoothcontrol.services.ConnectionManager;
 import com.fapr.bluetoothcontrol.services.LEDeviceService;
+import com.fapr.bluetoothcontrol.services.DoorCommandClient;
 import com.fapr.bluetoothcontrol.services.DoorService;
 import com.fapr.bluetoothcontrol.services.TokenService;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
@@ -54,6 +57,7 @@ public class DoorControl extends AppCompatActivity implements LEDeviceService.LE
 
     private LEDeviceService deviceService;
     private DoorService doorService;
+    private DoorCommandClient doorClient;
     private TokenService tokenService;
     private RetrofitClient client;
     private final Handler handler = new Handler(Looper.getMainLooper());
@@ -82,8 +86,9 @@ public class DoorControl extends AppCompatActivity implements LEDeviceService.LE
         deviceAddress = getIntent().getStringExtra("address");
         if(deviceAddress == null) deviceAddress = "00:11:22:33:44:55";
 
-        deviceService = new LEDeviceService(this, deviceAddress, SERVICE_UUID, CHARACTERISTIC_UUID, this);
+        deviceService = ConnectionManager.getInstance(this).attach(deviceAddress, SERVICE_UUID, CHARACTERISTIC_UUID, this);
         doorService = new DoorService(SENSOR_PASSWORD);
+        doorClient = new DoorCommandClient(deviceService, doorService);
         tokenService = new TokenService(getSecret());
         client = new RetrofitClient(BASE_URI);
 
@@ -110,7 +115,7 @@ public class DoorControl extends AppCompatActivity implements LEDeviceService.LE
         binding.buttonOpened.setOnClickListener(view -> handleActionSate(true));
 
         binding.backButton.setOnClickListener(view -> {
-            handleDisconnect();
+            // The link stays warm in ConnectionManager, onDestroy detaches it
             clearDevice();
             getOnBackPressedDispatcher().onBackPressed();
         });
@@ -233,9 +238,26 @@ public class DoorControl extends AppCompatActivity implements LEDeviceService.LE
     }
 
     private void sendBluetoothTriggerState(boolean open) {
-        byte[] value = new byte[] { 0x00 };
-        if(open) value = new byte[] { 0x01 };
-        deviceService.sendData(doorService.getSensorCommand(0x6c, value));
+        doorClient.setTrigger(open, response -> {
+            if (response.isSuccessful()) {
+                Log.v("DOOR", "Trigger confirmed in " + response.getRoundTrip() + " ms");
+                return;
+            }
+            if (response.getStatus() == DoorResponseModel.STATUS_CANCELLED) return;
+            // The screen changed before the answer, read the real state back
+            showLogMessage("La chapa no confirmó la instrucción");
+            readDoorState();
+        });
+    }
+
+    private void readDoorState() {
+        doorClient.readTrigger(response -> {
+            if (!response.isSuccessful()) {
+                Log.v("DOOR", "State not read: " + response.getStatus());
+                return;
+            }
+            updateState(!doorService.getTriggerStatus(response));
+        });
     }
 
     private void handlesDeviceTime() {
@@ -287,6 +309,12 @@ public class DoorControl extends AppCompatActivity implements LEDeviceService.LE
         enableSyncButton(false);
         binding.deviceStatus.setText("Sincronizando...");
         showLogMessage("Se ha iniciado la conexión con el dispositivo");
+        if (deviceService.isReady()) {
+            // The link survived the previous screen, no need to connect again
+            onConnected();
+            onCommunicationReady();
+            return;
+        }
         deviceService.connectDevice();
     }
 
@@ -339,17 +367,15 @@ public class DoorControl extends AppCompatActivity implements LEDeviceService.LE
         enableToggleButtons(true);
 
         // STARTING STATE
-        handler.post(()-> deviceService.sendData(doorService.getSensorCommand(0x6d, null)));
+        handler.post(this::readDoorState);
     }
 
     @Override
     public void onDataReceived(@NonNull byte[] data) {
-        Log.v("onDataReceived", bytesToString(data).trim());
+        // Formatting every frame is costly, enable with: adb shell setprop log.tag.onDataReceived VERBOSE
+        if (Log.isLoggable("onDataReceived", Log.VERBOSE)) Log.v("onDataReceived", bytesToString(data).trim());
 
-        if(data.length > 2 && data[1] == 0x6d) {
-            boolean trigger = doorService.getTriggerStatus(data);
-            updateState(!trigger);
-        }
+        doorClient.onDataReceived(data);
     }
 
     @Override
@@ -363,6 +389,7 @@ public class DoorControl extends AppCompatActivity implements LEDeviceService.LE
 
     @Override
     public void onDisconnected() {
+        if (doorClient != null) doorClient.cancelAll();
         showLogMessage("El dispositivo se ha desconectado");
         binding.deviceStatus.setText("Desconectado del dispositivo");
         enableSyncButton(true);
@@ -383,6 +410,7 @@ public class DoorControl extends AppCompatActivity implements LEDeviceService.LE
     @Override
     protected void onDestroy() {
         handler.removeCallbacks(runnable);
+        ConnectionManager.getInstance(this).detach(deviceAddress, this);
         super.onDestroy();
     }
 
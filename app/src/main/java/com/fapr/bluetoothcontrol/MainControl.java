@@ -7,8 +7,6 @@ import static com.fapr.bluetoothcontrol.utils.DataUtil.DATA_DEVICE_ADDRESS;
 import static com.fapr.bluetoothcontrol.utils.DataUtil.DATA_DEVICE_NAME;
 import static com.fapr.bluetoothcontrol.utils.DataUtil.SETTINGS_DATA;
 import static com.fapr.bluetoothcontrol.utils.DataUtil.decrypt;
-import static com.fapr.bluetoothcontrol.utils.DataUtil.normalizeMac;
-import static com.fapr.bluetoothcontrol.utils.DataUtil.startsWithHeader;
 import static com.fapr.bluetoothcontrol.utils.SensorUtil.*;
 
 import android.Manifest;
@@ -22,6 +20,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.Log;
 import android.view.View;
@@ -45,8 +44,13 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.fapr.bluetoothcontrol.adapters.DeviceListAdapter;
 import com.fapr.bluetoothcontrol.databinding.ActivityMainControlBinding;
 import com.fapr.bluetoothcontrol.databinding.DialogAddBinding;
+import com.fapr.bluetoothcontrol.models.AdvertisementModel;
 import com.fapr.bluetoothcontrol.models.DeviceModel;
+import com.fapr.bluetoothcontrol.models.ScanResultModel;
+import com.fapr.bluetoothcontrol.services.AuthorizationIndex;
 import com.fapr.bluetoothcontrol.services.BluetoothService;
+import com.fapr.bluetoothcontrol.services.DeviceRegistry;
+import com.fapr.bluetoothcontrol.services.ScanProfile;
 import com.fapr.bluetoothcontrol.ui.login.LoginActivity;
 import com.fapr.bluetoothcontrol.utils.BluetoothUtil;
 import com.google.android.material.button.MaterialButton;
@@ -62,11 +66,19 @@ import java.util.HashSet;
 import java.util.List;
 
 public class MainControl extends AppCompatActivity implements BluetoothService.BluetoothEventListener, TabLayout.OnTabSelectedListener {
+    private static final long STALE_DEVICE_AGE = 15_000_000_000L;
+    private static final long STALE_CHECK_PERIOD = 1000;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    // Devices that stop advertising leave the list even when no new batch arrives
+    private final Runnable staleCheck = this::removeStaleDevices;
     private ActivityMainControlBinding binding;
     private BluetoothAdapter bluetoothAdapter;
-    private final List<DeviceModel> doorFound = new ArrayList<>();
-    private final List<DeviceModel> lockFound = new ArrayList<>();
+    private final DeviceRegistry doorFound = new DeviceRegistry();
+    private final DeviceRegistry lockFound = new DeviceRegistry();
+    private final DeviceListAdapter doorAdapter = new DeviceListAdapter(item -> handleItemClick(item, SENSOR_TYPE_DOOR));
+    private final DeviceListAdapter lockAdapter = new DeviceListAdapter(item -> handleItemClick(item, SENSOR_TYPE_LOCK));
     private List<String> devices;
+    private AuthorizationIndex authorized;
     private String clientId;
     private BluetoothService service;
     private int type = SENSOR_TYPE_DOOR;
@@ -84,8 +96,10 @@ public class MainControl extends AppCompatActivity implements BluetoothService.B
         });
 
         binding.devicesList.setLayoutManager(new LinearLayoutManager(this));
+        binding.devicesList.setAdapter(doorAdapter);
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         service = new BluetoothService(this, this);
+        service.setBatching(true);
 
         startControls();
         readDevices();
@@ -180,26 +194,27 @@ public class MainControl extends AppCompatActivity implements BluetoothService.B
         
         if(name.startsWith("ELOCK")) {
             deviceType = SENSOR_TYPE_LOCK;
-            String mac = normalizeMac(address);
-            isAuthorized = devices.contains(mac);
+            isAuthorized = authorized.contains(address, false);
         } else {
-            String mac = normalizeMac(address);
-            if (devices.contains(mac)) {
+            if (authorized.contains(address, false)) {
                 deviceType = SENSOR_TYPE_DOOR;
                 isAuthorized = true;
-            } else if (devices.contains("ANT-" + mac)) {
+            } else if (authorized.contains(address, true)) {
                 deviceType = SENSOR_TYPE_LOCK;
                 isAuthorized = true;
             }
         }
         
         if (isAuthorized) {
-            handleItemClick(new DeviceModel(name, address), deviceType);
+            handleItemClick(new DeviceModel(name, address), deviceType, true);
         }
     }
 
     private void saveOtherDevice(String address) {
         devices.add(address);
+        // The scan worker may be reading the current index, publish a new one
+        authorized = AuthorizationIndex.from(devices);
+        service.setAuthorizedDevices(devices, authorized);
 
         SharedPreferences prefs = getSharedPreferences(SETTINGS_DATA, MODE_PRIVATE);
         SharedPreferences.Editor editor = prefs.edit();
@@ -210,6 +225,8 @@ public class MainControl extends AppCompatActivity implements BluetoothService.B
     private void readDevices() {
         SharedPreferences prefs = getSharedPreferences(SETTINGS_DATA, MODE_PRIVATE);
         devices = new ArrayList<>(prefs.getStringSet(CLIENT_DEVICES, new HashSet<>()));
+        authorized = AuthorizationIndex.from(devices);
+        service.setAuthorizedDevices(devices, authorized);
         clientId = prefs.getString(CLIENT_TOKEN, "");
     }
 
@@ -226,6 +243,7 @@ public class MainControl extends AppCompatActivity implements BluetoothService.B
     }
 
     private void hideSearchViews() {
+        handler.removeCallbacks(staleCheck);
         if(type == SENSOR_TYPE_DOOR) binding.bluetoothSearch.setText("Buscar chapa");
         if(type == SENSOR_TYPE_LOCK) binding.bluetoothSearch.setText("Buscar anti-asalto");
 
@@ -234,7 +252,7 @@ public class MainControl extends AppCompatActivity implements BluetoothService.B
         binding.progress.setVisibility(View.GONE);
     }
 
-    private void showListStatus(@NonNull List<DeviceModel> list) {
+    private void showListStatus(@NonNull DeviceRegistry list) {
         if (list.isEmpty()) binding.devicesLabel.setText("No se encontraron dispositivos");
         else binding.devicesLabel.setText("Seleccione un dispositivo para conectarse");
     }
@@ -299,25 +317,49 @@ public class MainControl extends AppCompatActivity implements BluetoothService.B
 
         if(type == SENSOR_TYPE_DOOR) {
             doorFound.clear();
-            binding.devicesList.setAdapter(new DeviceListAdapter(doorFound, item -> {}));
+            showDevices(doorFound, doorAdapter);
             binding.devicesLabel.setText("Buscando dispositivos de chapa...");
-            service.searchLEDevices();
+            service.searchLEDevices(searchProfile());
         }
         else if(type == SENSOR_TYPE_LOCK) {
             lockFound.clear();
-            binding.devicesList.setAdapter(new DeviceListAdapter(lockFound, item -> {}));
+            showDevices(lockFound, lockAdapter);
             binding.devicesLabel.setText("Buscando dispositivos de anti-asalto...");
-            service.searchLEDevices();
-            new Handler(Looper.getMainLooper()).postDelayed(() -> service.searchClassicDevices(), 3000);
+            service.searchAllDevices(searchProfile());
         }
+        handler.removeCallbacks(staleCheck);
+        handler.postDelayed(staleCheck, STALE_CHECK_PERIOD);
+    }
+
+    private void removeStaleDevices() {
+        DeviceRegistry list = type == SENSOR_TYPE_DOOR ? doorFound : lockFound;
+        if(list.removeStale(SystemClock.elapsedRealtimeNanos(), STALE_DEVICE_AGE)) {
+            showDevices(list, type == SENSOR_TYPE_DOOR ? doorAdapter : lockAdapter);
+        }
+        handler.postDelayed(staleCheck, STALE_CHECK_PERIOD);
+    }
+
+    /**
+     * Unregistered units can not be opened, with a client list only those are searched.
+     */
+    private ScanProfile searchProfile() {
+        return devices == null || devices.isEmpty() ? ScanProfile.batched() : ScanProfile.authorized();
     }
 
     @Override
     protected void onResume() {
         super.onResume();
+        service.refreshPreconditions();
         startControls();
     }
 
+    @Override
+    protected void onDestroy() {
+        handler.removeCallbacks(staleCheck);
+        service.close();
+        super.onDestroy();
+    }
+
     @Override
     public void onConnected() {
         binding.bluetoothSwitch.setChecked(true);
@@ -334,6 +376,12 @@ public class MainControl extends AppCompatActivity implements BluetoothService.B
 
     @Override
     public void onError(int error) {
+        if(error == BluetoothUtil.ERROR_CLASSIC_SCAN) {
+            // The LE scan keeps searching, onFinishSearch still ends it
+            Log.v("BLUETOOTH ERROR", "Classic inquiry not started");
+            return;
+        }
+
         hideSearchViews();
         binding.devicesLabel.setText("No se encontraron dispositivos");
         if(error == BluetoothUtil.ERROR_LOCATION_PERMISSION) {
@@ -385,52 +433,68 @@ public class MainControl extends AppCompatActivity implements BluetoothService.B
     }
 
     @Override
-    public void onFoundLEDevice(String name, String address, byte[] data) {
+    public void onFoundLEDevice(String name, String address, AdvertisementModel advertisement) {
         if(address == null || name == null) return;
-        if(!startsWithHeader(data)) return;
+        if(!advertisement.isSensor()) return;
         
         if(type == SENSOR_TYPE_DOOR) {
-            handleFoundDevice(name, address, SENSOR_TYPE_DOOR, doorFound);
+            if(doorFound.put(name, address)) showDevices(doorFound, doorAdapter);
         }
         else if(type == SENSOR_TYPE_LOCK) {
-            handleFoundDevice(name, address, SENSOR_TYPE_LOCK, lockFound);
+            if(lockFound.put(name, address)) showDevices(lockFound, lockAdapter);
         }
     }
 
+    @Override
+    public void onFoundDevices(List<ScanResultModel> results) {
+        DeviceRegistry list = type == SENSOR_TYPE_DOOR ? doorFound : lockFound;
+        boolean changed = false;
+        boolean lockChanged = false;
+        for (ScanResultModel result : results) {
+            if(result.getName() == null) continue;
+            int rssi = result.getSmoothedRssi();
+            if(result.isClassic() && result.getName().startsWith("ELOCK")) {
+                lockChanged |= lockFound.put(result.getName(), result.getAddress(), rssi, result.getTimestamp());
+            } else if(result.isSensor()) {
+                changed |= list.put(result.getName(), result.getAddress(), rssi, result.getTimestamp());
+            }
+        }
+        if(changed) showDevices(list, type == SENSOR_TYPE_DOOR ? doorAdapter : lockAdapter);
+        if(lockChanged && !(changed && list == lockFound)) showDevices(lockFound, lockAdapter);
+    }
+
     @SuppressLint("HardwareIds")
     @Override
     public void onFoundClassicDevice(String name, String address) {
         if(address == null || name == null) return;
         if(!name.startsWith("ELOCK")) return;
         
-        handleFoundDevice(name, address, SENSOR_TYPE_LOCK, lockFound);
+        if(lockFound.put(name, address)) showDevices(lockFound, lockAdapter);
     }
 
-    private void handleFoundDevice(String name, String address, int deviceType, List<DeviceModel> list) {
-        if (name == null) return;
-        for (DeviceModel item : list) {
-            if (item.getName().equals(name)) return;
-        }
-        list.add(new DeviceModel(name, address));
-        binding.devicesList.setAdapter(new DeviceListAdapter(list, item -> handleItemClick(item, deviceType)));
+    private void showDevices(DeviceRegistry list, DeviceListAdapter adapter) {
+        adapter.submitList(list.snapshot());
     }
 
     private void handleItemClick(DeviceModel item, int deviceType) {
+        handleItemClick(item, deviceType, false);
+    }
+
+    private void handleItemClick(DeviceModel item, int deviceType, boolean reconnect) {
         if (!service.isConnected()) {
             showAlert("Se requiere de conexión Bluetooth para conectar con: " + item.getName());
             return;
         }
 
-        String mac = normalizeMac(item.getMac());
         boolean autorizado = false;
 
         if (deviceType == SENSOR_TYPE_DOOR) {
-            autorizado = devices.contains(mac);
+            autorizado = authorized.contains(item.getMac(), false);
         } else if (deviceType == SENSOR_TYPE_LOCK) {
             if (item.getName().startsWith("ELOCK")) {
-                autorizado = devices.contains(mac);
+                autorizado = authorized.contains(item.getMac(), false);
             } else {
-                autorizado = devices.contains("ANT-" + mac);
+                autorizado = authorized.contains(item.getMac(), true);
             }
         }
 
@@ -443,6 +507,7 @@ public class MainControl extends AppCompatActivity implements BluetoothService.B
         intent.putExtra("type", deviceType);
         intent.putExtra("name", item.getName());
         intent.putExtra("address", item.getMac());
+        intent.putExtra("reconnect", reconnect);
         startActivity(intent);
     }
 
@@ -481,14 +546,14 @@ public class MainControl extends AppCompatActivity implements BluetoothService.B
         if(pos == 0) {
             type = SENSOR_TYPE_DOOR;
             showListStatus(doorFound);
-            binding.devicesList.setAdapter(new DeviceListAdapter(doorFound, item -> handleItemClick(item, SENSOR_TYPE_DOOR)));
+            binding.devicesList.setAdapter(doorAdapter);
             binding.bluetoothSearch.setText("Buscar chapa");
         }
 
         if(pos == 1) {
             type = SENSOR_TYPE_LOCK;
             showListStatus(lockFound);
-            binding.devicesList.setAdapter(new DeviceListAdapter(lockFound, item -> handleItemClick(item, SENSOR_TYPE_LOCK)));
+            binding.devicesList.setAdapter(lockAdapter);
             binding.bluetoothSearch.setText("Buscar anti-asalto");
         }
     }
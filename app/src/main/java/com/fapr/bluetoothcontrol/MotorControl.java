@@ -16,6 +16,7 @@ import android.view.View;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.Toast;
 
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.LinearLayoutManager;
@@ -28,6 +29,8 @@ import com.fapr.bluetoothcontrol.databinding.DialogCodeBinding;
 import com.fapr.bluetoothcontrol.models.LogModel;
 import com.fapr.bluetoothcontrol.models.TimeSyncModel;
 import com.fapr.bluetoothcontrol.services.ClassicDeviceService;
+import com.fapr.bluetoothcontrol.services.ClassicHeartbeat;
+import com.fapr.bluetoothcontrol.services.LockCommandClient;
 import com.fapr.bluetoothcontrol.services.LockService;
 import com.fapr.bluetoothcontrol.services.TokenService;
 import com.fapr.bluetoothcontrol.utils.BluetoothUtil;
@@ -57,6 +60,8 @@ public class MotorControl extends AppCompatActivity implements ClassicDeviceServ
     private LogListAdapter logAdapter;
 
     private ClassicDeviceService deviceService;
+    private LockCommandClient lockClient;
+    private ClassicHeartbeat heartbeat;
     private TokenService tokenService;
     private RetrofitClient client;
     private final Handler handler = new Handler(Looper.getMainLooper());
@@ -87,6 +92,24 @@ public class MotorControl extends AppCompatActivity implements ClassicDeviceServ
         if(deviceAddress == null) deviceAddress = "00:11:22:33:44:55";
 
         deviceService = new ClassicDeviceService(this, deviceAddress, this);
+        lockClient = new LockCommandClient(deviceService);
+        heartbeat = new ClassicHeartbeat(deviceService, lockClient, new ClassicHeartbeat.Listener() {
+            @Override
+            public void onDegraded() {
+                binding.deviceStatus.setText("Conexión inestable");
+            }
+
+            @Override
+            public void onAlive() {
+                binding.deviceStatus.setText("Dispositivo sincronizado");
+            }
+
+            @Override
+            public void onLost() {
+                showLogMessage("El dispositivo dejó de responder");
+                deviceService.disconnectDevice();
+            }
+        });
         tokenService = new TokenService(getSecret());
         client = new RetrofitClient(BASE_URI);
 
@@ -291,9 +314,9 @@ public class MotorControl extends AppCompatActivity implements ClassicDeviceServ
     }
 
     private void sendBluetoothTriggerState(boolean open) {
-        String value = LockService.LOCK;
-        if(open) value = LockService.UNLOCK;
-        deviceService.sendData(value);
+        heartbeat.onActivity();
+        if(open) lockClient.unlock(null);
+        else lockClient.lock(null);
     }
 
     private void sendPairingCommand() {
@@ -357,11 +380,11 @@ public class MotorControl extends AppCompatActivity implements ClassicDeviceServ
         validateToken(checked ? "Activar parking" : "Desactivar parking", new OnSuccessToken() {
             @Override
             public void onSuccess() {
+                heartbeat.onActivity();
+                lockClient.setMode(checked, null);
                 if(checked) {
-                    deviceService.sendData(LockService.MODE_MANUAL);
                     showLogMessage("El dispositivo está en modo Parking");
                 } else {
-                    deviceService.sendData(LockService.MODE_AUTO);
                     showLogMessage("Se desactivó el modo Parking del dispositivo");
                 }
                 parkingEnabled = checked;
@@ -399,6 +422,7 @@ public class MotorControl extends AppCompatActivity implements ClassicDeviceServ
     }
 
     private void handleDisconnect() {
+        heartbeat.stop();
         enableDisconnectButton(false);
         enableParkingButton(false);
         if(!parkingEnabled) {
@@ -446,13 +470,15 @@ public class MotorControl extends AppCompatActivity implements ClassicDeviceServ
     }
 
     @Override
-    public void onDataReceived(String data) {
-        Log.v("READ", data);
-        if(data.contains("Device Unlocked")) {
-            updateState(false);
-        } else if(data.contains("Device Locked")) {
-            updateState(true);
-        }
+    public void onLockState(boolean locked) {
+        lockClient.onLockState(locked);
+        updateState(locked);
+    }
+
+    @Override
+    public void onLineReceived(int type, @NonNull String key, @NonNull String value) {
+        Log.v("READ", type + " " + key + " " + value);
+        lockClient.onLine(type, key, value);
     }
 
     @Override
@@ -466,12 +492,16 @@ public class MotorControl extends AppCompatActivity implements ClassicDeviceServ
 
         // STARTING STATE
         handler.post(()-> {
-            deviceService.sendData(LockService.ENABLE_SERIAL);
-            deviceService.sendData(LockService.GET_STATE);
-            deviceService.sendData("settings");
-            deviceService.sendData("info");
+            lockClient.enableSerial(null);
+            lockClient.readStatus(response -> {
+                if (!response.isSuccessful()) return;
+                Log.v("ELOCK", "Firmware " + response.getFirmware() + ", mode " + response.getMode()
+                        + ", lock timer " + response.getLockTimer() + " s");
+                if (response.hasLockState()) updateState(response.isLocked());
+            });
             sendPairingCommand();
         });
+        heartbeat.start();
 
         saveDevice();
         if(parkingEnabled) {
@@ -481,6 +511,8 @@ public class MotorControl extends AppCompatActivity implements ClassicDeviceServ
 
     @Override
     public void onDisconnected() {
+        heartbeat.stop();
+        lockClient.cancelAll();
         showLogMessage("El dispositivo se ha desconectado");
         binding.deviceStatus.setText("Dispositivo desconectado");
 
@@ -512,6 +544,7 @@ public class MotorControl extends AppCompatActivity implements ClassicDeviceServ
     @Override
     protected void onDestroy() {
         handler.removeCallbacks(runnable);
+        heartbeat.stop();
         super.onDestroy();
     }
 
@@ -1,10 +1,13 @@
 package com.fapr.bluetoothcontrol;
 
 import static com.fapr.bluetoothcontrol.utils.Base32Util.SECRET_KEY;
+import static com.fapr.bluetoothcontrol.utils.BluetoothUtil.ERROR_CONNECTION_FAILED;
+import static com.fapr.bluetoothcontrol.utils.BluetoothUtil.ERROR_READ_FAILED;
 import static com.fapr.bluetoothcontrol.utils.DataUtil.*;
 import static com.fapr.bluetoothcontrol.utils.DataUtil.bytesToString;
 import static com.fapr.bluetoothcontrol.utils.SensorUtil.*;
 
+import android.bluetooth.BluetoothGatt;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Color;
@@ -27,15 +30,25 @@ import com.fapr.bluetoothcontrol.api.RequestInterface;
 import com.fapr.bluetoothcontrol.api.RetrofitClient;
 import com.fapr.bluetoothcontrol.databinding.ActivityDoorControlBinding;
 import com.fapr.bluetoothcontrol.databinding.DialogCodeBinding;
+import com.fapr.bluetoothcontrol.models.DoorResponseModel;
+import com.fapr.bluetoothcontrol.models.LockResponseModel;
 import com.fapr.bluetoothcontrol.models.LogModel;
 import com.fapr.bluetoothcontrol.models.TimeSyncModel;
 import com.fapr.bluetoothcontrol.services.LEDeviceService;
 import com.fapr.bluetoothcontrol.services.ClassicDeviceService;
+import com.fapr.bluetoothcontrol.services.ClassicHeartbeat;
+import com.fapr.bluetoothcontrol.services.ClassicLineDecoder;
+import com.fapr.bluetoothcontrol.services.ConnectionManager;
+import com.fapr.bluetoothcontrol.services.ConnectionSupervisor;
+import com.fapr.bluetoothcontrol.services.DoorCommandClient;
 import com.fapr.bluetoothcontrol.services.DoorService;
+import com.fapr.bluetoothcontrol.services.LatencyRecorder;
+import com.fapr.bluetoothcontrol.services.LockCommandClient;
 import com.fapr.bluetoothcontrol.services.LockService;
 import com.fapr.bluetoothcontrol.services.TokenService;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 
+import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -43,6 +56,8 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import retrofit2.Call;
 import retrofit2.Callback;
@@ -57,6 +72,7 @@ public class UnifiedControl extends AppCompatActivity implements
     private String deviceName;
     private int deviceType;
     private boolean isClassicDevice;
+    private boolean reconnect;
     private boolean parkingEnabled = false;
     private String closeCommand = "locktimer 0005\n";
     private final List<LogModel> logList = new ArrayList<>();
@@ -65,9 +81,30 @@ public class UnifiedControl extends AppCompatActivity implements
     private LEDeviceService leDeviceService;
     private ClassicDeviceService classicDeviceService;
     private DoorService doorService;
+    private DoorCommandClient doorClient;
+    private LockCommandClient lockClient;
+    private ClassicHeartbeat heartbeat;
     private LockService lockService;
     private TokenService tokenService;
     private RetrofitClient client;
+    private ConnectionSupervisor supervisor;
+    private static final String[] LATENCY_LABELS = new String[LatencyRecorder.METRIC_NAMES.length];
+    static {
+        LATENCY_LABELS[LatencyRecorder.METRIC_CONNECT] = "Conexión";
+        LATENCY_LABELS[LatencyRecorder.METRIC_BOND] = "Vinculación";
+        LATENCY_LABELS[LatencyRecorder.METRIC_DISCOVERY] = "Descubrimiento";
+        LATENCY_LABELS[LatencyRecorder.METRIC_CCCD] = "Notificaciones";
+        LATENCY_LABELS[LatencyRecorder.METRIC_FIRST_NOTIFICATION] = "Primera respuesta";
+        LATENCY_LABELS[LatencyRecorder.METRIC_COMMAND] = "Comando";
+        LATENCY_LABELS[LatencyRecorder.METRIC_WRITE] = "Cola de escritura";
+        LATENCY_LABELS[LatencyRecorder.METRIC_SDP_CONNECT] = "Conexión con SDP";
+    }
+    // One writer for every screen, exports of screens closed in a row wait in line
+    private static final ExecutorService EXPORT_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Latency export");
+        thread.setDaemon(true);
+        return thread;
+    });
     
     private final Handler handler = new Handler(Looper.getMainLooper());
     private final Runnable runnable = new Runnable() {
@@ -90,6 +127,7 @@ public class UnifiedControl extends AppCompatActivity implements
         deviceName = getIntent().getStringExtra("name");
         deviceType = getIntent().getIntExtra("type", SENSOR_TYPE_DOOR);
         isClassicDevice = deviceName != null && deviceName.startsWith("ELOCK");
+        reconnect = getIntent().getBooleanExtra("reconnect", false);
 
         if(deviceAddress == null) deviceAddress = "00:11:22:33:44:55";
         if(deviceName == null) deviceName = "DEVICE";
@@ -127,11 +165,31 @@ public class UnifiedControl extends AppCompatActivity implements
     private void initializeServices() {
         if (isClassicDevice) {
             classicDeviceService = new ClassicDeviceService(this, deviceAddress, this);
+            lockClient = new LockCommandClient(classicDeviceService);
+            heartbeat = new ClassicHeartbeat(classicDeviceService, lockClient, new ClassicHeartbeat.Listener() {
+                @Override
+                public void onDegraded() {
+                    supervisor.onDegraded();
+                }
+
+                @Override
+                public void onAlive() {
+                    supervisor.onAlive();
+                }
+
+                @Override
+                public void onLost() {
+                    // Half-open socket, close it so the supervisor opens a new one
+                    Log.v("HEARTBEAT", "No answer for " + heartbeat.getSilence() + " ms, closing the link");
+                    classicDeviceService.disconnectDevice();
+                }
+            });
             lockService = new LockService();
         } else {
-            leDeviceService = new LEDeviceService(this, deviceAddress, SERVICE_UUID, CHARACTERISTIC_UUID, this);
+            leDeviceService = ConnectionManager.getInstance(this).attach(deviceAddress, SERVICE_UUID, CHARACTERISTIC_UUID, this);
             if (deviceType == SENSOR_TYPE_DOOR) {
                 doorService = new DoorService(SENSOR_PASSWORD);
+                doorClient = new DoorCommandClient(leDeviceService, doorService);
             } else {
                 lockService = new LockService();
             }
@@ -139,6 +197,18 @@ public class UnifiedControl extends AppCompatActivity implements
         
         tokenService = new TokenService(getSecret());
         client = new RetrofitClient(BASE_URI);
+        supervisor = new ConnectionSupervisor(deviceAddress, new ConnectionSupervisor.Connector() {
+            @Override
+            public void connect(boolean retry) {
+                startConnection(retry);
+            }
+
+            @Override
+            public void abort() {
+                if (isClassicDevice) classicDeviceService.disconnectDevice();
+                else leDeviceService.disconnectDevice();
+            }
+        }, this::onLinkStateChanged);
     }
 
     private void setupListeners() {
@@ -173,12 +243,33 @@ public class UnifiedControl extends AppCompatActivity implements
         }
 
         binding.backButton.setOnClickListener(view -> {
-            handleDisconnect();
+            // LE links stay warm in ConnectionManager, onDestroy detaches them
+            if (isClassicDevice) handleDisconnect();
             clearDevice();
             getOnBackPressedDispatcher().onBackPressed();
         });
     }
 
+    /**
+     * p50/p95/p99 of every step measured for this device, one log line each.
+     */
+    private void showLatency() {
+        LatencyRecorder latency = LatencyRecorder.getInstance();
+        String transport = isClassicDevice ? LatencyRecorder.TRANSPORT_CLASSIC : LatencyRecorder.TRANSPORT_LE;
+        for (int metric = 0; metric < LATENCY_LABELS.length; metric++) {
+            long count = latency.getCount(transport, deviceAddress, metric);
+            if (count == 0) continue;
+            showLogMessage(LATENCY_LABELS[metric] + ": p50 " + latency.getPercentile(transport, deviceAddress, metric, 50)
+                    + " ms, p95 " + latency.getPercentile(transport, deviceAddress, metric, 95)
+                    + " ms, p99 " + latency.getPercentile(transport, deviceAddress, metric, 99) + " ms (" + count + ")");
+        }
+    }
+
+    private void exportLatency() {
+        File file = new File(getExternalFilesDir(null), "latency.csv");
+        EXPORT_EXECUTOR.execute(() -> LatencyRecorder.getInstance().export(file));
+    }
+
     private String getSecret() {
         SharedPreferences prefs = getSharedPreferences(SETTINGS_DATA, MODE_PRIVATE);
         return prefs.getString(CLIENT_TOKEN, SECRET_KEY);
@@ -316,14 +407,21 @@ public class UnifiedControl extends AppCompatActivity implements
                 return;
             }
             
-            leDeviceService.sendData(new byte[]{0x01});
             enableToggleButtons(false);
-            startCountdown();
-            
-            handler.postDelayed(() -> {
-                leDeviceService.sendData(new byte[]{0x00});
-                enableToggleButtons(true);
-            }, 5000);
+            // The 5 s window starts when the lock confirms the first write, not when it was queued
+            leDeviceService.sendData(new byte[]{0x01}, (status, value, mtu) -> {
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    showLogMessage("No se pudo desactivar el antirobo");
+                    enableToggleButtons(true);
+                    return;
+                }
+
+                startCountdown();
+                handler.postDelayed(() -> leDeviceService.sendData(new byte[]{0x00}, (result, data, size) -> {
+                    if (result != BluetoothGatt.GATT_SUCCESS) showLogMessage("No se pudo reactivar el antirobo");
+                    enableToggleButtons(true);
+                }), 5000);
+            });
             
             dialog.dismiss();
         });
@@ -375,12 +473,21 @@ public class UnifiedControl extends AppCompatActivity implements
 
     private void sendBluetoothTriggerState(boolean open) {
         if (isClassicDevice) {
-            String value = open ? LockService.UNLOCK : LockService.LOCK;
-            classicDeviceService.sendData(value);
+            heartbeat.onActivity();
+            if (open) lockClient.unlock(null);
+            else lockClient.lock(null);
         } else {
             if (deviceType == SENSOR_TYPE_DOOR) {
-                byte[] value = open ? new byte[]{0x01} : new byte[]{0x00};
-                leDeviceService.sendData(doorService.getSensorCommand(0x6c, value));
+                doorClient.setTrigger(open, response -> {
+                    if (response.isSuccessful()) {
+                        Log.v("DOOR", "Trigger confirmed in " + response.getRoundTrip() + " ms");
+                        return;
+                    }
+                    if (response.getStatus() == DoorResponseModel.STATUS_CANCELLED) return;
+                    // The screen changed before the answer, read the real state back
+                    showLogMessage("La chapa no confirmó la instrucción");
+                    readDoorState();
+                });
             } else {
                 String value = open ? LockService.UNLOCK : LockService.LOCK;
                 leDeviceService.sendData(value.getBytes());
@@ -439,17 +546,57 @@ public class UnifiedControl extends AppCompatActivity implements
 
     private void handleConnect() {
         enableSyncButton(false);
-        binding.deviceStatus.setText("Sincronizando...");
         showLogMessage("Se ha iniciado la conexión con el dispositivo");
-        
+        supervisor.start();
+    }
+
+    /**
+     * One connection attempt of the supervisor, the results come back through the device events.
+     */
+    private void startConnection(boolean retry) {
         if (isClassicDevice) {
             classicDeviceService.connectDevice();
+        } else if (leDeviceService.isReady()) {
+            // The link survived the previous screen, no need to connect again
+            onConnected();
+            onCommunicationReady();
+        } else if (reconnect || retry) {
+            // The first connection to the last used device and recoveries race scan and autoConnect
+            reconnect = false;
+            leDeviceService.connectDeviceFast();
         } else {
             leDeviceService.connectDevice();
         }
     }
 
+    private void onLinkStateChanged(int state) {
+        switch (state) {
+            case ConnectionSupervisor.STATE_IDLE:
+                binding.deviceStatus.setText("Desconectado del dispositivo");
+                enableSyncButton(true);
+                break;
+            case ConnectionSupervisor.STATE_CONNECTING:
+                binding.deviceStatus.setText(supervisor.getAttempt() > 0
+                        ? "Reconectando (intento " + supervisor.getAttempt() + ")..." : "Sincronizando...");
+                break;
+            case ConnectionSupervisor.STATE_READY:
+                binding.deviceStatus.setText("Dispositivo sincronizado");
+                break;
+            case ConnectionSupervisor.STATE_DEGRADED:
+                binding.deviceStatus.setText("Conexión inestable");
+                showLogMessage("La conexión con el dispositivo es inestable");
+                break;
+            case ConnectionSupervisor.STATE_BACKOFF:
+                long seconds = (supervisor.getRetryDelay() + 999) / 1000;
+                binding.deviceStatus.setText("Reconectando en " + seconds + " s");
+                if (supervisor.getAttempt() == 1) showLogMessage("Se perdió la conexión, reconectando automáticamente");
+                break;
+        }
+    }
+
     private void handleDisconnect() {
+        supervisor.stop();
+        if (heartbeat != null) heartbeat.stop();
         enableCloseButton(false);
         if (isClassicDevice) {
             if (!parkingEnabled) {
@@ -502,37 +649,78 @@ public class UnifiedControl extends AppCompatActivity implements
     // LE Device Events
     @Override
     public void onCommunicationReady() {
+        supervisor.onReady();
+        showLatency();
         showLogMessage("El dispositivo está listo para recibir instrucciones");
         enableToggleButtons(true);
 
         if (deviceType == SENSOR_TYPE_DOOR) {
-            handler.post(()-> leDeviceService.sendData(doorService.getSensorCommand(0x6d, null)));
+            handler.post(this::readDoorState);
         }
     }
 
     @Override
     public void onDataReceived(@NonNull byte[] data) {
-        Log.v("onDataReceived", bytesToString(data).trim());
+        // Formatting every frame is costly, enable with: adb shell setprop log.tag.onDataReceived VERBOSE
+        if (Log.isLoggable("onDataReceived", Log.VERBOSE)) Log.v("onDataReceived", bytesToString(data).trim());
+        supervisor.onAlive();
 
-        if (deviceType == SENSOR_TYPE_DOOR && data.length > 2 && data[1] == 0x6d) {
-            boolean trigger = doorService.getTriggerStatus(data);
-            updateState(!trigger);
-        }
+        if (deviceType == SENSOR_TYPE_DOOR) doorClient.onDataReceived(data);
+    }
+
+    private void readDoorState() {
+        doorClient.readTrigger(response -> {
+            if (!response.isSuccessful()) {
+                Log.v("DOOR", "State not read: " + response.getStatus());
+                return;
+            }
+            updateState(!doorService.getTriggerStatus(response));
+        });
     }
 
     // Classic Device Events
     @Override
-    public void onDataReceived(String data) {
-        Log.v("read", data);
-        if(data.contains("Device Unlocked")) {
-            updateState(false);
-        } else if(data.contains("Device Locked")) {
-            updateState(true);
-        }
+    public void onLockState(boolean locked) {
+        supervisor.onAlive();
+        // The device also reports changes nobody asked for, the screen follows both
+        lockClient.onLockState(locked);
+        updateState(locked);
+    }
+
+    @Override
+    public void onLineReceived(int type, @NonNull String key, @NonNull String value) {
+        Log.v("read", type + " " + key + " " + value);
+        supervisor.onAlive();
+        if (lockClient.onLine(type, key, value)) return;
+        if (type == ClassicLineDecoder.TYPE_ERROR) showLogMessage("El dispositivo respondió: " + value);
+    }
+
+    private void readLockStatus() {
+        lockClient.enableSerial(null);
+        lockClient.readStatus(response -> {
+            if (response.getStatus() == LockResponseModel.STATUS_ERROR) {
+                showLogMessage("El dispositivo respondió: " + response.getError());
+                return;
+            }
+            if (!response.isSuccessful()) {
+                Log.v("ELOCK", "Status not read: " + response.getStatus());
+                return;
+            }
+            Log.v("ELOCK", "Firmware " + response.getFirmware() + ", mode " + response.getMode()
+                    + ", lock timer " + response.getLockTimer() + " s in " + response.getRoundTrip() + " ms");
+            if (response.hasLockState()) updateState(response.isLocked());
+        });
     }
 
     @Override
     public void onConnected() {
+        // Classic sockets are usable right away, LE links still discover their services
+        if (isClassicDevice) {
+            supervisor.onReady();
+            showLatency();
+        } else {
+            supervisor.onConnected();
+        }
         showLogMessage("El dispositivo se ha conectado correctamente");
         binding.deviceStatus.setText("Dispositivo sincronizado");
         enableSyncButton(false);
@@ -546,12 +734,8 @@ public class UnifiedControl extends AppCompatActivity implements
         saveDevice();
 
         if (isClassicDevice) {
-            handler.post(()-> {
-                classicDeviceService.sendData(LockService.ENABLE_SERIAL);
-                classicDeviceService.sendData(LockService.GET_STATE);
-                classicDeviceService.sendData("settings");
-                classicDeviceService.sendData("info");
-            });
+            handler.post(this::readLockStatus);
+            heartbeat.start();
             
             if (parkingEnabled) {
                 binding.parkingToggle.check(R.id.parking_button);
@@ -561,9 +745,15 @@ public class UnifiedControl extends AppCompatActivity implements
 
     @Override
     public void onDisconnected() {
-        showLogMessage("El dispositivo se ha desconectado");
-        binding.deviceStatus.setText("Desconectado del dispositivo");
-        enableSyncButton(true);
+        if (doorClient != null) doorClient.cancelAll();
+        if (heartbeat != null) heartbeat.stop();
+        if (lockClient != null) lockClient.cancelAll();
+        int state = supervisor.getState();
+        // A failed attempt is not news, the supervisor already shows it is retrying
+        if (state != ConnectionSupervisor.STATE_CONNECTING && state != ConnectionSupervisor.STATE_BACKOFF) {
+            showLogMessage("El dispositivo se ha desconectado");
+        }
+        supervisor.onLost();
         enableCloseButton(false);
         enableToggleButtons(false);
         
@@ -574,14 +764,18 @@ public class UnifiedControl extends AppCompatActivity implements
 
     @Override
     public void onConnectionLosing() {
-        if (isClassicDevice) {
-            handleDisconnect();
-        }
+        // Keep the link, if it really drops the supervisor brings it back
+        supervisor.onDegraded();
+        if (heartbeat != null) heartbeat.checkNow();
     }
 
     @Override
     public void onError(int error) {
         Log.v("DEV ERROR", error + "");
+        if (isClassicDevice && (error == ERROR_CONNECTION_FAILED || error == ERROR_READ_FAILED)) {
+            // The socket is gone, same as a disconnection
+            onDisconnected();
+        }
     }
 
     private void readSettings() {
@@ -631,11 +825,11 @@ public class UnifiedControl extends AppCompatActivity implements
         validateToken(checked ? "Activar parking" : "Desactivar parking", new OnSuccessToken() {
             @Override
             public void onSuccess() {
+                heartbeat.onActivity();
+                lockClient.setMode(checked, null);
                 if(checked) {
-                    classicDeviceService.sendData(LockService.MODE_MANUAL);
                     showLogMessage("El dispositivo está en modo Parking");
                 } else {
-                    classicDeviceService.sendData(LockService.MODE_AUTO);
                     showLogMessage("Se desactivó el modo Parking del dispositivo");
                 }
                 parkingEnabled = checked;
@@ -697,6 +891,10 @@ public class UnifiedControl extends AppCompatActivity implements
     @Override
     protected void onDestroy() {
         handler.removeCallbacks(runnable);
+        supervisor.stop();
+        if (heartbeat != null) heartbeat.stop();
+        exportLatency();
+        if (leDeviceService != null) ConnectionManager.getInstance(this).detach(deviceAddress, this);
         super.onDestroy();
     }
 
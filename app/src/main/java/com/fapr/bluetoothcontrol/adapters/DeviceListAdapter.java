@@ -7,20 +7,36 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.fapr.bluetoothcontrol.R;
 import com.fapr.bluetoothcontrol.models.DeviceModel;
 
-import java.util.List;
+/**
+ * Rows are diffed on a background thread by ListAdapter, so submitList() only
+ * rebinds the devices that were added or changed.
+ */
+public class DeviceListAdapter extends ListAdapter<DeviceModel, DeviceListAdapter.ViewHolder> {
+    private static final DiffUtil.ItemCallback<DeviceModel> DIFF = new DiffUtil.ItemCallback<DeviceModel>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull DeviceModel oldItem, @NonNull DeviceModel newItem) {
+            return oldItem.getId() == newItem.getId();
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull DeviceModel oldItem, @NonNull DeviceModel newItem) {
+            return oldItem.sameContent(newItem);
+        }
+    };
 
-public class DeviceListAdapter extends RecyclerView.Adapter<DeviceListAdapter.ViewHolder> {
-    private final List<DeviceModel> dataset;
     private final OnDeviceClickListener listener;
 
-    public DeviceListAdapter(List<DeviceModel> dataset, OnDeviceClickListener listener) {
-        this.dataset = dataset;
+    public DeviceListAdapter(OnDeviceClickListener listener) {
+        super(DIFF);
         this.listener = listener;
+        setHasStableIds(true);
     }
 
     @NonNull
@@ -34,7 +50,7 @@ public class DeviceListAdapter extends RecyclerView.Adapter<DeviceListAdapter.Vi
 
     @Override
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
-        DeviceModel item = dataset.get(position);
+        DeviceModel item = getItem(position);
         String name = item.getName();
         if(name == null) name = item.getMac();
 
@@ -43,8 +59,8 @@ public class DeviceListAdapter extends RecyclerView.Adapter<DeviceListAdapter.Vi
     }
 
     @Override
-    public int getItemCount() {
-        return dataset.size();
+    public long getItemId(int position) {
+        return getItem(position).getId();
     }
 
     public static class ViewHolder extends RecyclerView.ViewHolder {
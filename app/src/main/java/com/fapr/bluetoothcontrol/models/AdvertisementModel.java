@@ -0,0 +1,179 @@
+package com.fapr.bluetoothcontrol.models;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * TYPED VIEW OVER A RAW LE ADVERTISEMENT
+ * <p>
+ * Filled by AdvertisementParser without copying the record. The offsets point into
+ * the original scan bytes, so the instance is only valid while those bytes are alive
+ * and can be reused for the next advertisement with reset().
+ */
+public class AdvertisementModel {
+    public static final int NOT_PRESENT = -1;
+    public static final int MAX_UUIDS = 8;
+
+    private byte[] data;
+    private boolean valid;
+    private int flags;
+    private int manufacturerId;
+    private int manufacturerOffset;
+    private int manufacturerLength;
+    private int sensorOffset;
+    private int sensorLength;
+    private int nameOffset;
+    private int nameLength;
+    private final int[] uuids16 = new int[MAX_UUIDS];
+    private int uuid16Count;
+    private final int[] uuid128Offsets = new int[MAX_UUIDS];
+    private int uuid128Count;
+
+    public AdvertisementModel() {
+        reset(null);
+    }
+
+    public void reset(@Nullable byte[] data) {
+        this.data = data;
+        this.valid = data != null;
+        this.flags = NOT_PRESENT;
+        this.manufacturerId = NOT_PRESENT;
+        this.manufacturerOffset = NOT_PRESENT;
+        this.manufacturerLength = 0;
+        this.sensorOffset = NOT_PRESENT;
+        this.sensorLength = 0;
+        this.nameOffset = NOT_PRESENT;
+        this.nameLength = 0;
+        this.uuid16Count = 0;
+        this.uuid128Count = 0;
+    }
+
+    /**
+     * Take every field of other without parsing again. Both point into the same
+     * record bytes, which are never written after the scan result is built.
+     */
+    public void copyFrom(@NonNull AdvertisementModel other) {
+        this.data = other.data;
+        this.valid = other.valid;
+        this.flags = other.flags;
+        this.manufacturerId = other.manufacturerId;
+        this.manufacturerOffset = other.manufacturerOffset;
+        this.manufacturerLength = other.manufacturerLength;
+        this.sensorOffset = other.sensorOffset;
+        this.sensorLength = other.sensorLength;
+        this.nameOffset = other.nameOffset;
+        this.nameLength = other.nameLength;
+        this.uuid16Count = other.uuid16Count;
+        System.arraycopy(other.uuids16, 0, uuids16, 0, other.uuid16Count);
+        this.uuid128Count = other.uuid128Count;
+        System.arraycopy(other.uuid128Offsets, 0, uuid128Offsets, 0, other.uuid128Count);
+    }
+
+    public void setInvalid() {
+        this.valid = false;
+    }
+
+    public void setFlags(int flags) {
+        this.flags = flags;
+    }
+
+    public void setManufacturer(int id, int offset, int length) {
+        this.manufacturerId = id;
+        this.manufacturerOffset = offset;
+        this.manufacturerLength = length;
+    }
+
+    public void setSensorPayload(int offset, int length) {
+        this.sensorOffset = offset;
+        this.sensorLength = length;
+    }
+
+    public void setLocalName(int offset, int length) {
+        this.nameOffset = offset;
+        this.nameLength = length;
+    }
+
+    public void addUuid16(int uuid) {
+        if (uuid16Count < MAX_UUIDS) uuids16[uuid16Count++] = uuid;
+    }
+
+    public void addUuid128(int offset) {
+        if (uuid128Count < MAX_UUIDS) uuid128Offsets[uuid128Count++] = offset;
+    }
+
+    @Nullable
+    public byte[] getData() {
+        return data;
+    }
+
+    /** False when an AD structure overran the record; fields parsed before it stay usable. */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /** True when the record carries the TSR1-B/ELOCK service data header. */
+    public boolean isSensor() {
+        return sensorOffset != NOT_PRESENT;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public int getManufacturerId() {
+        return manufacturerId;
+    }
+
+    public int getManufacturerOffset() {
+        return manufacturerOffset;
+    }
+
+    public int getManufacturerLength() {
+        return manufacturerLength;
+    }
+
+    public int getSensorOffset() {
+        return sensorOffset;
+    }
+
+    public int getSensorLength() {
+        return sensorLength;
+    }
+
+    public int getNameOffset() {
+        return nameOffset;
+    }
+
+    public int getNameLength() {
+        return nameLength;
+    }
+
+    public int getUuid16Count() {
+        return uuid16Count;
+    }
+
+    public int getUuid16(int index) {
+        return uuids16[index];
+    }
+
+    public int getUuid128Count() {
+        return uuid128Count;
+    }
+
+    /** Offset of the 16 little endian bytes of the 128-bit UUID at index. */
+    public int getUuid128Offset(int index) {
+        return uuid128Offsets[index];
+    }
+
+    public int getSensorByte(int index) {
+        if (data == null || index < 0 || index >= sensorLength) return NOT_PRESENT;
+        return data[sensorOffset + index] & 0xFF;
+    }
+
+    public boolean hasUuid16(int uuid) {
+        for (int i = 0; i < uuid16Count; i++) {
+            if (uuids16[i] == uuid) return true;
+        }
+        return false;
+    }
+}
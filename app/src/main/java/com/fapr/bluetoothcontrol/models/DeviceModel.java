@@ -1,12 +1,20 @@
 package com.fapr.bluetoothcontrol.models;
 
+import java.util.Objects;
+
 public class DeviceModel {
     String name;
     String mac;
+    int rssi;
 
     public DeviceModel(String name, String mac) {
+        this(name, mac, Integer.MIN_VALUE);
+    }
+
+    public DeviceModel(String name, String mac, int rssi) {
         this.name = name;
         this.mac = mac;
+        this.rssi = rssi;
     }
 
     public String getMac() {
@@ -20,4 +28,26 @@ public class DeviceModel {
     public void setName(String name) {
         this.name = name;
     }
+
+    /** Smoothed RSSI in dBm, Integer.MIN_VALUE when unknown. */
+    public int getRssi() {
+        return rssi;
+    }
+
+    /**
+     * Stable id for list adapters, the 48 bits of the MAC address.
+     */
+    public long getId() {
+        if (mac == null) return 0;
+        long id = 0;
+        for (int i = 0; i < mac.length(); i++) {
+            int digit = Character.digit(mac.charAt(i), 16);
+            if (digit >= 0) id = (id << 4) | digit;
+        }
+        return id;
+    }
+
+    public boolean sameContent(DeviceModel other) {
+        return rssi == other.rssi && Objects.equals(name, other.name) && Objects.equals(mac, other.mac);
+    }
 }
@@ -0,0 +1,85 @@
+package com.fapr.bluetoothcontrol.models;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * ANSWER OF THE TSR1-B TO ONE COMMAND
+ * <p>
+ * The sensor answers with [status, opcode, payload...]. Requests that never got an
+ * answer carry one of the STATUS_* values below and no payload.
+ */
+public class DoorResponseModel {
+    public static final int STATUS_TIMEOUT = -1;
+    public static final int STATUS_NOT_SENT = -2;
+    public static final int STATUS_CANCELLED = -3;
+    private static final int HEADER = 2;
+
+    private final int opcode;
+    private final int sequence;
+    private final int status;
+    private final byte[] data;
+    private final long roundTrip;
+
+    public DoorResponseModel(int opcode, int sequence, @NonNull byte[] data, long roundTrip) {
+        this.opcode = opcode;
+        this.sequence = sequence;
+        this.status = data[0];
+        this.data = data;
+        this.roundTrip = roundTrip;
+    }
+
+    private DoorResponseModel(int opcode, int sequence, int status) {
+        this.opcode = opcode;
+        this.sequence = sequence;
+        this.status = status;
+        this.data = null;
+        this.roundTrip = -1;
+    }
+
+    /** A request that ended without an answer from the sensor. */
+    @NonNull
+    public static DoorResponseModel failed(int opcode, int sequence, int status) {
+        return new DoorResponseModel(opcode, sequence, status);
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    /** Number given by DoorCommandClient when the request was sent. */
+    public int getSequence() {
+        return sequence;
+    }
+
+    /** DoorService.RESPONSE_* sent by the sensor, or a STATUS_* when there was no answer. */
+    public int getStatus() {
+        return status;
+    }
+
+    public boolean isSuccessful() {
+        return status == 0x00;
+    }
+
+    /** Milliseconds from the request to its answer, -1 without answer. */
+    public long getRoundTrip() {
+        return roundTrip;
+    }
+
+    /** Bytes after the status and opcode, 0 when the sensor did not answer. */
+    public int getPayloadLength() {
+        return data == null ? 0 : Math.max(0, data.length - HEADER);
+    }
+
+    /** Unsigned payload byte at index, -1 when the answer is shorter. */
+    public int getPayloadByte(int index) {
+        if (index < 0 || index >= getPayloadLength()) return -1;
+        return data[HEADER + index] & 0xFF;
+    }
+
+    /** Raw answer, null when the sensor did not answer. */
+    @Nullable
+    public byte[] getData() {
+        return data;
+    }
+}
@@ -0,0 +1,63 @@
+package com.fapr.bluetoothcontrol.models;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * OUTCOME OF ONE DEVICE IN A FLEET SESSION
+ * <p>
+ * Holds the answers to every command of the session in order. A failed device keeps
+ * the answers it got before the link was lost or its time ran out.
+ */
+public class FleetResultModel {
+    private final String address;
+    private final boolean successful;
+    private final List<DoorResponseModel> responses;
+    private final int tries;
+    private final long duration;
+
+    public FleetResultModel(@NonNull String address, boolean successful, @NonNull List<DoorResponseModel> responses,
+                            int tries, long duration) {
+        this.address = address;
+        this.successful = successful;
+        this.responses = responses;
+        this.tries = tries;
+        this.duration = duration;
+    }
+
+    @NonNull
+    public String getAddress() {
+        return address;
+    }
+
+    /** Every command was answered by the device. */
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    @NonNull
+    public List<DoorResponseModel> getResponses() {
+        return responses;
+    }
+
+    /** Answer to the command with this opcode, null if it was not answered. */
+    @Nullable
+    public DoorResponseModel getResponse(int opcode) {
+        for (DoorResponseModel response : responses) {
+            if (response.getOpcode() == opcode && response.isSuccessful()) return response;
+        }
+        return null;
+    }
+
+    /** Connections it took, more than one when the device was rotated out. */
+    public int getTries() {
+        return tries;
+    }
+
+    /** Milliseconds of the last try, from connect to the last answer. */
+    public long getDuration() {
+        return duration;
+    }
+}
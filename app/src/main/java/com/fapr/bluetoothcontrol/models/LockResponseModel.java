@@ -0,0 +1,140 @@
+package com.fapr.bluetoothcontrol.models;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * ANSWER OF THE ELOCK TO ONE COMMAND
+ * <p>
+ * State commands answer with "Device Locked" or "Device Unlocked", "settings" and
+ * "info" with key/value lines. Keys are kept in lower case, the getters below accept
+ * the spellings seen on different firmware versions. Requests that got no answer
+ * carry one of the STATUS_* values.
+ */
+public class LockResponseModel {
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_TIMEOUT = -1;
+    public static final int STATUS_NOT_SENT = -2;
+    public static final int STATUS_CANCELLED = -3;
+    public static final int STATUS_ERROR = -4;
+
+    private final String command;
+    private final int status;
+    private final Boolean locked;
+    private final Map<String, String> values;
+    private final String error;
+    private final long roundTrip;
+
+    public LockResponseModel(@NonNull String command, int status, @Nullable Boolean locked,
+                             @NonNull Map<String, String> values, @Nullable String error, long roundTrip) {
+        this.command = command;
+        this.status = status;
+        this.locked = locked;
+        this.values = Collections.unmodifiableMap(values);
+        this.error = error;
+        this.roundTrip = roundTrip;
+    }
+
+    /** A request that ended without an answer, or with an error line. */
+    @NonNull
+    public static LockResponseModel failed(@NonNull String command, int status, @Nullable String error) {
+        return new LockResponseModel(command, status, null, Collections.<String, String>emptyMap(), error, -1);
+    }
+
+    // PRIVATE METHODS
+    @Nullable
+    private String first(@NonNull String... keys) {
+        for (String key : keys) {
+            String value = values.get(key);
+            if (value != null && !value.isEmpty()) return value;
+        }
+        return null;
+    }
+
+    // PUBLIC METHODS
+    /** Command line that was sent, without the newline. */
+    @NonNull
+    public String getCommand() {
+        return command;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public boolean isSuccessful() {
+        return status == STATUS_OK;
+    }
+
+    /** True when the answer said whether the device is locked. */
+    public boolean hasLockState() {
+        return locked != null;
+    }
+
+    public boolean isLocked() {
+        return locked != null && locked;
+    }
+
+    /** Every key/value line of the answer, keys in lower case. */
+    @NonNull
+    public Map<String, String> getValues() {
+        return values;
+    }
+
+    @Nullable
+    public String getValue(@NonNull String key) {
+        return values.get(key.toLowerCase(Locale.US));
+    }
+
+    /** "auto" or "manual", null when not reported. */
+    @Nullable
+    public String getMode() {
+        String mode = first("mode");
+        return mode != null ? mode.toLowerCase(Locale.US) : null;
+    }
+
+    /** Manual mode is what the screens call parking. */
+    public boolean isManualMode() {
+        String mode = getMode();
+        return mode != null && mode.startsWith("manual");
+    }
+
+    /** Seconds of the lock timer, -1 when not reported. Units after the number are ignored. */
+    public int getLockTimer() {
+        String timer = first("locktimer", "lock timer", "lock_timer", "timer");
+        if (timer == null) return -1;
+
+        int seconds = 0;
+        int digits = 0;
+        for (int i = 0; i < timer.length() && digits < 9; i++) {
+            char c = timer.charAt(i);
+            if (c >= '0' && c <= '9') {
+                seconds = seconds * 10 + (c - '0');
+                digits++;
+            } else if (digits > 0) {
+                break;
+            }
+        }
+        return digits > 0 ? seconds : -1;
+    }
+
+    @Nullable
+    public String getFirmware() {
+        return first("firmware", "fw", "version", "firmware version");
+    }
+
+    /** Error line sent by the device, when the status is STATUS_ERROR. */
+    @Nullable
+    public String getError() {
+        return error;
+    }
+
+    /** Milliseconds from the request to the end of the answer, -1 without answer. */
+    public long getRoundTrip() {
+        return roundTrip;
+    }
+}
@@ -0,0 +1,137 @@
+package com.fapr.bluetoothcontrol.models;
+
+import androidx.annotation.NonNull;
+
+/**
+ * LATEST STATE OF ONE DEVICE SEEN BY THE SCANNER
+ * <p>
+ * Instances are pooled per address by ScanBatcher and updated in place, the
+ * listener must copy what it needs before the next frame. The scan thread and
+ * the main thread never share an instance, frames receive copies.
+ */
+public class ScanResultModel {
+    public static final int MAX_PAYLOAD = 31;
+    public static final int TRANSPORT_LE = 1;
+    public static final int TRANSPORT_CLASSIC = 2;
+
+    private final String address;
+    private String name;
+    private int rssi;
+    private int smoothedRssi = Integer.MIN_VALUE;
+    private long timestamp;
+    private boolean sensor;
+    private int manufacturerId;
+    private final byte[] payload = new byte[MAX_PAYLOAD];
+    private int payloadLength;
+    private int updates;
+    private int transports;
+    private boolean dirty;
+
+    public ScanResultModel(@NonNull String address) {
+        this.address = address;
+    }
+
+    public void update(String name, int rssi, long timestamp, @NonNull AdvertisementModel advertisement) {
+        if (name != null) this.name = name;
+        this.rssi = rssi;
+        this.timestamp = timestamp;
+        this.sensor = advertisement.isSensor();
+        this.manufacturerId = advertisement.getManufacturerId();
+        this.payloadLength = 0;
+        this.updates++;
+        this.transports |= TRANSPORT_LE;
+
+        byte[] data = advertisement.getData();
+        if (sensor && data != null) {
+            payloadLength = Math.min(advertisement.getSensorLength(), MAX_PAYLOAD);
+            System.arraycopy(data, advertisement.getSensorOffset(), payload, 0, payloadLength);
+        }
+    }
+
+    public void updateClassic(String name, int rssi, long timestamp) {
+        if (name != null) this.name = name;
+        this.rssi = rssi;
+        this.timestamp = timestamp;
+        this.updates++;
+        this.transports |= TRANSPORT_CLASSIC;
+    }
+
+    /** Copy every field of other, which must have the same address. */
+    public void copyFrom(@NonNull ScanResultModel other) {
+        this.name = other.name;
+        this.rssi = other.rssi;
+        this.smoothedRssi = other.smoothedRssi;
+        this.timestamp = other.timestamp;
+        this.sensor = other.sensor;
+        this.manufacturerId = other.manufacturerId;
+        this.payloadLength = other.payloadLength;
+        System.arraycopy(other.payload, 0, payload, 0, other.payloadLength);
+        this.updates = other.updates;
+        this.transports = other.transports;
+    }
+
+    public void setSmoothedRssi(int smoothedRssi) {
+        this.smoothedRssi = smoothedRssi;
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    public void setDirty(boolean dirty) {
+        this.dirty = dirty;
+    }
+
+    @NonNull
+    public String getAddress() {
+        return address;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+
+    /** Filtered RSSI from RssiTracker, Integer.MIN_VALUE when unknown. */
+    public int getSmoothedRssi() {
+        return smoothedRssi;
+    }
+
+    /** Elapsed realtime in nanoseconds when the advertisement was received. */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /** Bit mask of TRANSPORT_LE and TRANSPORT_CLASSIC, dual mode devices can have both. */
+    public int getTransports() {
+        return transports;
+    }
+
+    public boolean isClassic() {
+        return (transports & TRANSPORT_CLASSIC) != 0;
+    }
+
+    public boolean isSensor() {
+        return sensor;
+    }
+
+    public int getManufacturerId() {
+        return manufacturerId;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    public int getPayloadByte(int index) {
+        return payload[index] & 0xFF;
+    }
+
+    /** Advertisements merged into this entry since the scan started. */
+    public int getUpdates() {
+        return updates;
+    }
+}
@@ -0,0 +1,142 @@
+package com.fapr.bluetoothcontrol.services;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * MACS AUTHORIZED FOR THE CLIENT
+ * <p>
+ * Each CLIENT_DEVICES entry is packed into a long: the 48 bits of the MAC plus
+ * LOCK_CLASS when the entry has the ANT- prefix. Keys live in an open addressing
+ * table with linear probing, so lookups from the scan path parse the address in
+ * place and never allocate.
+ * <p>
+ * The index can not change once built, a new one is built from() the updated list,
+ * so it can be read from the scan worker while the main thread replaces it.
+ */
+public class AuthorizationIndex {
+    public static final long LOCK_CLASS = 1L << 48;
+    public static final long INVALID = -1L;
+    private static final String LOCK_PREFIX = "ANT-";
+    private static final long EMPTY = -1L;
+
+    private long[] table;
+    private int mask;
+    private int size;
+
+    private AuthorizationIndex(int expected) {
+        allocate(expected);
+    }
+
+    /**
+     * Build an index from the CLIENT_DEVICES string set.
+     */
+    @NonNull
+    public static AuthorizationIndex from(@Nullable Collection<String> devices) {
+        AuthorizationIndex index = new AuthorizationIndex(devices == null ? 16 : devices.size());
+        if (devices != null) {
+            for (String device : devices) {
+                index.add(device);
+            }
+        }
+        return index;
+    }
+
+    // PUBLIC METHODS
+    /**
+     * True when address (any case, with or without colons) is authorized as the given class.
+     */
+    public boolean contains(@NonNull String address, boolean lock) {
+        long key = parseMac(address, 0);
+        if (key == INVALID) return false;
+        return find(lock ? key | LOCK_CLASS : key);
+    }
+
+    /** True when address is authorized as a door or as a lock. */
+    public boolean containsAny(@NonNull String address) {
+        long key = parseMac(address, 0);
+        if (key == INVALID) return false;
+        return find(key) || find(key | LOCK_CLASS);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Parse 12 hex digits starting at offset, skipping colons and surrounding spaces.
+     */
+    public static long parseMac(@NonNull String text, int offset) {
+        long value = 0;
+        int digits = 0;
+        for (int i = offset; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == ':' || c == ' ') continue;
+
+            int digit = Character.digit(c, 16);
+            if (digit < 0 || ++digits > 12) return INVALID;
+            value = (value << 4) | digit;
+        }
+        return digits == 12 ? value : INVALID;
+    }
+
+    // PRIVATE METHODS
+    /**
+     * Add an entry like AABBCCDDEEFF or ANT-AABBCCDDEEFF, returns false when it is not a MAC.
+     */
+    private boolean add(@NonNull String entry) {
+        boolean lock = entry.startsWith(LOCK_PREFIX);
+        long key = parseMac(entry, lock ? LOCK_PREFIX.length() : 0);
+        if (key == INVALID) return false;
+
+        if (lock) key |= LOCK_CLASS;
+        if ((size + 1) * 2 > table.length) grow();
+        insert(key);
+        return true;
+    }
+
+    private void allocate(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) capacity <<= 1;
+        table = new long[capacity];
+        Arrays.fill(table, EMPTY);
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private void grow() {
+        long[] old = table;
+        allocate(old.length);
+        for (long key : old) {
+            if (key != EMPTY) insert(key);
+        }
+    }
+
+    private void insert(long key) {
+        int i = hash(key) & mask;
+        while (table[i] != EMPTY) {
+            if (table[i] == key) return;
+            i = (i + 1) & mask;
+        }
+        table[i] = key;
+        size++;
+    }
+
+    private boolean find(long key) {
+        int i = hash(key) & mask;
+        while (table[i] != EMPTY) {
+            if (table[i] == key) return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    private static int hash(long key) {
+        // Vendor prefixes repeat, mix the bits so they do not cluster
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+}
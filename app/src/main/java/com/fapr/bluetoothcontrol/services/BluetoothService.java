@@ -1,9 +1,7 @@
 package com.fapr.bluetoothcontrol.services;
 
 import static com.fapr.bluetoothcontrol.utils.BluetoothUtil.*;
-import static com.fapr.bluetoothcontrol.utils.DataUtil.bytesToString;
 
-import android.Manifest;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.le.BluetoothLeScanner;
@@ -14,16 +12,23 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.pm.PackageManager;
-import android.location.LocationManager;
-import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
-import android.os.PowerManager;
+import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
-import androidx.core.app.ActivityCompat;
+import androidx.annotation.Nullable;
+
+import com.fapr.bluetoothcontrol.models.AdvertisementModel;
+import com.fapr.bluetoothcontrol.models.ScanResultModel;
+import com.fapr.bluetoothcontrol.utils.AdvertisementParser;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * MANAGE BLUETOOTH CONNECTIONS AND SEARCH FOR LE DEVICES
@@ -31,35 +36,82 @@ import androidx.core.app.ActivityCompat;
  * This service requires the user permissions for LOCATION and BLUETOOTH from device
  * The window for request permissions is launched using connect() and search() methods.
  * <p>
+ * Scan results, inquiry broadcasts and the scan scheduler run on a background looper,
+ * the main thread only receives finished, filtered results and the listener events.
+ * Call close() when the screen is destroyed.
+ * <p>
  * By Frankil Aldair Pérez Rosales
  */
 public class BluetoothService {
     // PROPERTIES
+    private static final int RSSI_CAPACITY = 512;
+    private static final int MSG_RESULT = 1;
+    private static final int MSG_BATCH = 2;
     private final Context context;
     private final BluetoothEventListener listener;
     private final BluetoothAdapter bluetoothAdapter;
     private final BluetoothLeScanner bluetoothLeScanner;
     private final Handler handler;
-    private boolean scanning;
+    private final HandlerThread workerThread;
+    private final Handler worker;
+    private final ScanPreconditions preconditions;
+    private final Runnable finishSearch;
+    private final AdvertisementModel advertisement = new AdvertisementModel();
+    private final ScanBatcher batcher;
+    private final ScanScheduler scheduler;
+    private final RssiTracker rssiTracker = new RssiTracker(RSSI_CAPACITY);
+    // Replaced, never changed in place: the scan worker reads them without locking
+    private volatile Collection<String> authorizedDevices;
+    private volatile AuthorizationIndex authorizationIndex;
+    private ScanProfile profile = ScanProfile.discovery();
+    private boolean batching;
+    private boolean session;
+    private boolean leDone;
+    private boolean classicDone;
+    private long classicStart;
+    private volatile long classicFirstResult = -1;
+    private volatile long classicTime;
 
     // EVENTS
+    private final ScanScheduler.ScanRadio radio = new ScanScheduler.ScanRadio() {
+        @Override
+        public void startRadio() {
+            if (!preconditions.canScan()) return;
+            bluetoothLeScanner.startScan(profile.buildFilters(authorizedDevices), profile.buildSettings(bluetoothAdapter), scanCallback);
+        }
+
+        @Override
+        public void stopRadio() {
+            if (!preconditions.canScan()) return;
+            bluetoothLeScanner.flushPendingScanResults(scanCallback);
+            bluetoothLeScanner.stopScan(scanCallback);
+        }
+
+        @Override
+        public void onScanFinished() {
+            Log.v("SCAN", "LE first result: " + scheduler.getTimeToFirstResult() + " ms, radio on: "
+                    + scheduler.getRadioOnTime() + " ms, devices: " + scheduler.getDiscoveries());
+            if (session) {
+                leDone = true;
+                finishSession();
+                return;
+            }
+            batcher.flushThen(finishSearch);
+        }
+    };
+
+    // The framework calls back on the main looper, hand results over without touching them
     private final ScanCallback scanCallback = new ScanCallback() {
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
             super.onScanResult(callbackType, result);
+            worker.obtainMessage(MSG_RESULT, result).sendToTarget();
+        }
 
-            BluetoothDevice device = result.getDevice();
-            ScanRecord scanRecord = result.getScanRecord();
-            byte[] scanBytes = new byte[]{};
-            if (scanRecord != null) scanBytes = scanRecord.getBytes();
-
-            if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-                    return;
-                }
-            }
-            // Log.v("onScanLEDResult", device.getName() + " " + device.getAddress() + " \n" + bytesToString(scanBytes));
-            listener.onFoundLEDevice(device.getName(), device.getAddress(), scanBytes);
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            super.onBatchScanResults(results);
+            worker.obtainMessage(MSG_BATCH, results).sendToTarget();
         }
 
         @Override
@@ -69,6 +121,26 @@ public class BluetoothService {
         }
     };
 
+    private final Handler.Callback workerCallback = new Handler.Callback() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean handleMessage(@NonNull Message message) {
+            if (message.what == MSG_RESULT) {
+                handleScanResult((ScanResult) message.obj);
+                return true;
+            }
+            if (message.what == MSG_BATCH) {
+                List<ScanResult> results = (List<ScanResult>) message.obj;
+                for (int i = 0; i < results.size(); i++) {
+                    handleScanResult(results.get(i));
+                }
+                return true;
+            }
+            return false;
+        }
+    };
+
+    // Registered on the worker looper, listener events are posted back to the main thread
     private final BroadcastReceiver receiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, @NonNull Intent intent) {
@@ -78,17 +150,17 @@ public class BluetoothService {
                 final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
                 switch (state) {
                     case BluetoothAdapter.STATE_OFF: {
-                        listener.onDisconnected();
+                        handler.post(listener::onDisconnected);
                         break;
                     }
 
                     case BluetoothAdapter.STATE_ON: {
-                        listener.onConnected();
+                        handler.post(listener::onConnected);
                         break;
                     }
 
                     case BluetoothAdapter.ERROR: {
-                        listener.onError(ERROR_ON_BLUETOOTH_STATE);
+                        postError(ERROR_ON_BLUETOOTH_STATE);
                         break;
                     }
                     default:
@@ -100,19 +172,37 @@ public class BluetoothService {
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
 
                 if (device != null) {
-                    if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-                            listener.onError(ERROR_BLUETOOTH_PERMISSION);
-                            return;
-                        }
+                    if (!preconditions.canConnect()) {
+                        postError(ERROR_BLUETOOTH_PERMISSION);
+                        return;
+                    }
+
+                    if (session && classicFirstResult < 0) {
+                        classicFirstResult = SystemClock.elapsedRealtime() - classicStart;
                     }
 
-                    listener.onFoundClassicDevice(device.getName(), device.getAddress());
+                    String name = device.getName();
+                    String address = device.getAddress();
+                    int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+                    long timestamp = SystemClock.elapsedRealtimeNanos();
+                    rssiTracker.record(address, rssi, timestamp);
+                    if (batching) {
+                        batcher.offerClassic(name, address, rssi, rssiTracker.getSmoothed(address), timestamp);
+                        return;
+                    }
+                    if (name == null) return;
+                    handler.post(() -> listener.onFoundClassicDevice(name, address));
                 }
             }
 
             if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(intent.getAction())) {
-                listener.onFinishSearch();
+                if (session) {
+                    classicDone = true;
+                    classicTime = SystemClock.elapsedRealtime() - classicStart;
+                    finishSession();
+                    return;
+                }
+                batcher.flushThen(finishSearch);
             }
         }
     };
@@ -121,21 +211,83 @@ public class BluetoothService {
     public BluetoothService(Context context, BluetoothEventListener listener) {
         this.context = context;
         this.listener = listener;
-        this.scanning = false;
         this.bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         this.bluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
         this.handler = new Handler(Looper.getMainLooper());
+        this.workerThread = new HandlerThread("BluetoothScan");
+        this.workerThread.start();
+        this.worker = new Handler(workerThread.getLooper(), workerCallback);
+        this.preconditions = new ScanPreconditions(context);
+        this.finishSearch = listener::onFinishSearch;
+        this.batcher = new ScanBatcher(listener::onFoundDevices);
+        this.scheduler = new ScanScheduler(worker, radio);
         isBluetoothReady();
         addReceiver();
     }
 
     // PRIVATE METHODS
+    /**
+     * Runs on the worker looper, only sensors and the profile target reach the main thread.
+     */
+    private void handleScanResult(@NonNull ScanResult result) {
+        BluetoothDevice device = result.getDevice();
+        ScanRecord scanRecord = result.getScanRecord();
+
+        if (!preconditions.canConnect()) return;
+
+        String address = device.getAddress();
+        AuthorizationIndex index = authorizationIndex;
+        // Keys not loaded yet authorize nothing, unknown units must not reach the list meanwhile
+        if (profile.isAuthorizedOnly() && (index == null || !index.containsAny(address))) return;
+
+        // Results are handled one by one on the worker looper, so a single model is reused
+        AdvertisementParser.parse(scanRecord != null ? scanRecord.getBytes() : null, advertisement);
+        if (!advertisement.isSensor() && profile.getAddress() == null) return;
+
+        scheduler.onResult(address);
+        rssiTracker.record(address, result.getRssi(), result.getTimestampNanos());
+        if (batching) {
+            batcher.offer(device.getName(), address, result.getRssi(), rssiTracker.getSmoothed(address),
+                    result.getTimestampNanos(), advertisement);
+            return;
+        }
+
+        String name = device.getName();
+        if (name == null) return;
+        // The shared model is overwritten by the next result, the listener gets its own
+        AdvertisementModel copy = new AdvertisementModel();
+        copy.copyFrom(advertisement);
+        handler.post(() -> listener.onFoundLEDevice(name, address, copy));
+    }
+
+    private void finishSession() {
+        if (!session || !leDone || !classicDone) return;
+        session = false;
+        Log.v("SCAN", "Classic first result: " + classicFirstResult + " ms, inquiry: " + classicTime + " ms");
+        batcher.flushThen(finishSearch);
+    }
+
+    private void postError(int error) {
+        handler.post(() -> listener.onError(error));
+    }
+
     private void addReceiver() {
         IntentFilter filter = new IntentFilter();
         filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
         filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
         filter.addAction(BluetoothDevice.ACTION_FOUND);
-        context.registerReceiver(receiver, filter);
+        context.registerReceiver(receiver, filter, null, worker);
+        preconditions.register(worker);
+    }
+
+    /**
+     * Check the cached permissions, power save and location before any search, reporting the first failure.
+     */
+    private boolean canScan() {
+        int error = preconditions.check();
+        if (error == ScanPreconditions.NO_ERROR) return true;
+        listener.onError(error);
+        return false;
     }
 
     private boolean isBluetoothReady() {
@@ -156,99 +308,111 @@ public class BluetoothService {
         return bluetoothAdapter.isEnabled();
     }
 
-    public void searchLEDevices() {
-        if (!isBluetoothReady())
-            return;
-
-        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-                listener.onError(ERROR_SCAN_PERMISSION);
-                return;
-            }
-        }
+    /**
+     * Devices from CLIENT_DEVICES, used for hardware filters and to drop unknown
+     * units on the scan path when the profile only wants authorized ones.
+     * The list is copied, build a new index when the devices change.
+     */
+    public void setAuthorizedDevices(@Nullable Collection<String> devices, @Nullable AuthorizationIndex index) {
+        this.authorizedDevices = devices == null ? null : new ArrayList<>(devices);
+        this.authorizationIndex = index;
+    }
 
-        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-            listener.onError(ERROR_LOCATION_PERMISSION);
-            return;
-        }
+    /**
+     * Merge results per device and deliver them through onFoundDevices once per frame.
+     */
+    public void setBatching(boolean batching) {
+        worker.post(() -> {
+            this.batching = batching;
+            if (!batching) batcher.clear();
+        });
+    }
 
-        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
-        if (powerManager != null && powerManager.isPowerSaveMode()) {
-            listener.onError(ERROR_POWER_SAVE_MODE);
-            return;
-        }
+    /**
+     * Read permissions again, call it when the screen resumes after a permission request.
+     */
+    public void refreshPreconditions() {
+        preconditions.refresh();
+    }
 
-        LocationManager locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
-        boolean isLocationEnabled = false;
-        if (locationManager != null) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
-                isLocationEnabled = locationManager.isLocationEnabled();
-            } else {
-                isLocationEnabled = locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER) ||
-                        locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER);
-            }
-        }
+    /**
+     * Stop searching, unregister the receivers and quit the worker looper.
+     */
+    public void close() {
+        worker.post(scheduler::stop);
+        context.unregisterReceiver(receiver);
+        preconditions.unregister();
+        workerThread.quitSafely();
+    }
 
-        if (!isLocationEnabled) {
-            listener.onError(ERROR_LOCATION_DISABLED);
-            return;
-        }
+    public void searchLEDevices() {
+        searchLEDevices(ScanProfile.discovery());
+    }
 
-        if (!scanning) {
-            handler.postDelayed(() -> {
-                if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-                        return;
-                    }
-                }
+    public void searchLEDevices(@NonNull ScanProfile profile) {
+        searchLEDevices(profile, false);
+    }
 
-                scanning = false;
-                bluetoothLeScanner.stopScan(scanCallback);
-                listener.onFinishSearch();
-            }, LE_SCAN_PERIOD);
+    /**
+     * Scan with the given profile, continuous scans run in low duty windows until stopLESearch().
+     */
+    public void searchLEDevices(@NonNull ScanProfile profile, boolean continuous) {
+        if (!isBluetoothReady() || !canScan())
+            return;
 
-            scanning = true;
-            bluetoothLeScanner.startScan(scanCallback);
-        }
+        worker.post(() -> {
+            if (scheduler.isRunning()) return;
+            this.profile = profile;
+            batcher.clear();
+            if (continuous) scheduler.startContinuous();
+            else scheduler.startOneShot(profile.getAddress());
+        });
     }
 
-    public void searchClassicDevices() {
-        if (!isBluetoothReady())
+    /**
+     * Run Classic inquiry and the LE scan in one session. The controller time-slices
+     * both radios, results are merged per device and onFinishSearch fires once both end.
+     * An inquiry that can not start is reported with ERROR_CLASSIC_SCAN and the session
+     * goes on with LE only.
+     */
+    public void searchAllDevices(@NonNull ScanProfile profile) {
+        if (!isBluetoothReady() || !canScan())
             return;
 
-        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-                listener.onError(ERROR_SCAN_PERMISSION);
-                return;
-            }
-        }
+        worker.post(() -> {
+            if (session || scheduler.isRunning()) return;
+
+            this.profile = profile;
+            batcher.clear();
+            session = true;
+            leDone = false;
+            classicFirstResult = -1;
+            classicTime = 0;
+            classicStart = SystemClock.elapsedRealtime();
+            classicDone = !bluetoothAdapter.startDiscovery();
+            // The LE half still runs, the session ends with it
+            if (classicDone) postError(ERROR_CLASSIC_SCAN);
+            scheduler.startOneShot(profile.getAddress());
+        });
+    }
 
-        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-            listener.onError(ERROR_LOCATION_PERMISSION);
-            return;
-        }
+    /** Milliseconds from the start of the session to the first Classic device, -1 if none. */
+    public long getClassicFirstResult() {
+        return classicFirstResult;
+    }
 
-        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
-        if (powerManager != null && powerManager.isPowerSaveMode()) {
-            listener.onError(ERROR_POWER_SAVE_MODE);
-            return;
-        }
+    /** Milliseconds the last Classic inquiry lasted. */
+    public long getClassicTime() {
+        return classicTime;
+    }
 
-        LocationManager locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
-        boolean isLocationEnabled = false;
-        if (locationManager != null) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
-                isLocationEnabled = locationManager.isLocationEnabled();
-            } else {
-                isLocationEnabled = locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER) ||
-                        locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER);
-            }
-        }
+    public void stopLESearch() {
+        worker.post(scheduler::stop);
+    }
 
-        if (!isLocationEnabled) {
-            listener.onError(ERROR_LOCATION_DISABLED);
+    public void searchClassicDevices() {
+        if (!isBluetoothReady() || !canScan())
             return;
-        }
 
         if(bluetoothAdapter.startDiscovery()) return;
 
@@ -260,7 +424,8 @@ public class BluetoothService {
         void onConnected();
         void onDisconnected();
         void onError(int error);
-        void onFoundLEDevice(String name, String address, byte[] data);
+        void onFoundLEDevice(String name, String address, AdvertisementModel advertisement);
+        void onFoundDevices(List<ScanResultModel> results);
         void onFoundClassicDevice(String name, String address);
         void onFinishSearch();
     }
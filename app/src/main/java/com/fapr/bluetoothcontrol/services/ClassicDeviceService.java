@@ -1,6 +1,8 @@
 package com.fapr.bluetoothcontrol.services;
 
+import static com.fapr.bluetoothcontrol.services.LatencyRecorder.*;
 import static com.fapr.bluetoothcontrol.utils.BluetoothUtil.*;
+import static com.fapr.bluetoothcontrol.utils.DataUtil.RFCOMM_CHANNELS;
 
 import android.Manifest;
 import android.annotation.SuppressLint;
@@ -11,13 +13,16 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.core.app.ActivityCompat;
 
 import com.fapr.bluetoothcontrol.utils.Base32Util;
@@ -25,33 +30,80 @@ import com.fapr.bluetoothcontrol.utils.Base32Util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * MANAGE THE CONNECTION AND COMMUNICATION WITH CLASSIC DEVICE
  * <p>
+ * Reads go through a ClassicLineDecoder, the listener gets whole lines already
+ * classified instead of raw chunks. Writes go through an RfcommWriter, sendData()
+ * only queues the command and never blocks the caller.
+ * <p>
+ * Connects run on one executor shared by every session. createRfcommSocketToServiceRecord()
+ * asks the device for the SPP channel over SDP before connecting, so once a bonded device
+ * has been reached its channel is kept in RFCOMM_CHANNELS and the next connect opens it
+ * directly. A failed direct connect drops the channel and falls back to SDP. A device
+ * that is not bonded is not bonded first: the secure socket pairs it during the same
+ * connect, createBond() is only the fallback when the stack does not.
+ * <p>
+ * Bond, socket connect (with and without SDP), first data and command round trip times
+ * go to the LatencyRecorder.
  */
 public class ClassicDeviceService {
     // PROPERTIES
     private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    private static final int MAX_CHANNEL = 30;
+    private static final long FAST_FAIL = 2000;
+    private static final ExecutorService CONNECT_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "RFCOMM connect");
+        thread.setDaemon(true);
+        return thread;
+    });
     private BluetoothSocket bluetoothSocket;
     private BluetoothDevice bluetoothDevice;
     private OutputStream outputStream;
     private InputStream inputStream;
+    private volatile RfcommWriter writer;
     private final Context context;
     private final BluetoothAdapter bluetoothAdapter;
     private final ClassicDeviceEventListener listener;
     private final String address;
     private final Handler handler;
-    private Thread readThread;
-    private boolean stopReading = false;
+    private final SharedPreferences channels;
+    private final AtomicBoolean connecting = new AtomicBoolean();
+    private volatile Thread readThread;
+    private volatile boolean stopReading = false;
+    private final LatencyRecorder latency = LatencyRecorder.getInstance();
+    private volatile long bondStart;
+    private volatile long dataStart;
+    private volatile long lastReceived;
+    private final ClassicLineDecoder decoder = new ClassicLineDecoder(new ClassicLineDecoder.Listener() {
+        @Override
+        public void onLockState(boolean locked) {
+            handler.post(() -> listener.onLockState(locked));
+        }
+
+        @Override
+        public void onLine(int type, @NonNull String key, @NonNull String value) {
+            handler.post(() -> listener.onLineReceived(type, key, value));
+        }
+    });
 
     // EVENTS
     private final BroadcastReceiver receiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, @NonNull Intent intent) {
             String action = intent.getAction();
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            // ACL events come for every device, only ours may lose the link
+            if (device != null && !device.getAddress().equals(address)
+                    && !BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) return;
             final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
             final int con_state = intent.getIntExtra(BluetoothAdapter.EXTRA_CONNECTION_STATE, BluetoothAdapter.ERROR);
 
@@ -66,16 +118,22 @@ public class ClassicDeviceService {
             }
 
             if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
-                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
                 int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.ERROR);
                 if(device == null) return;
                 if (device.equals(bluetoothDevice)) {
                     switch (bondState) {
                         case BluetoothDevice.BOND_BONDED:
-                            startConnection();
+                            if (bondStart > 0) record(METRIC_BOND, bondStart);
+                            bondStart = 0;
+                            // Paired by the socket itself, that connect is still running
+                            if (!connecting.get() && bluetoothSocket == null) {
+                                CONNECT_EXECUTOR.execute(ClassicDeviceService.this::startConnection);
+                            }
                             break;
                         case BluetoothDevice.BOND_NONE:
-                            listener.onError(ERROR_CONNECTION_FAILED);
+                            bondStart = 0;
+                            // A connect that was pairing reports its own failure
+                            if (!connecting.get()) listener.onError(ERROR_CONNECTION_FAILED);
                             break;
                     }
                 }
@@ -90,6 +148,7 @@ public class ClassicDeviceService {
         this.listener = listener;
         this.bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         this.handler = new Handler(Looper.getMainLooper());
+        this.channels = context.getSharedPreferences(RFCOMM_CHANNELS, Context.MODE_PRIVATE);
         addReceiver();
     }
 
@@ -133,26 +192,124 @@ public class ClassicDeviceService {
                 return;
             }
         }
+        if (!connecting.compareAndSet(false, true)) return;
 
         Log.v("REMOTE", "ADD:" + bluetoothDevice.getAddress()
                 + "\nADD32:" + Base32Util.encodeToBase32(bluetoothDevice.getAddress())
                 + "\nTYPE:" + bluetoothDevice.getType() // 1 FOR CLASSIC
                 + "\nUUIDS:" + Arrays.toString(bluetoothDevice.getUuids()));
 
+        // A reconnect after a lost link, the old socket is dead but still open
+        closeSocket();
         try {
-            bluetoothSocket = bluetoothDevice.createRfcommSocketToServiceRecord(SPP_UUID);
-            bluetoothSocket.connect();
+            bluetoothSocket = openSocket();
+            dataStart = SystemClock.elapsedRealtime();
+            lastReceived = dataStart;
             outputStream = bluetoothSocket.getOutputStream();
             inputStream = bluetoothSocket.getInputStream();
+            writer = new RfcommWriter(address, outputStream, () -> handler.post(()-> listener.onError(ERROR_SEND_FAILED)));
             startReading();
             handler.post(listener::onConnected);
         } catch (IOException e) {
-            handler.post(()-> listener.onError(ERROR_CONNECTION_FAILED));
+            closeSocket();
+            onConnectFailed();
+        } finally {
+            connecting.set(false);
+        }
+    }
+
+    /**
+     * Open the socket on the cached channel when there is one, on the SDP record otherwise.
+     */
+    @SuppressLint("MissingPermission")
+    @NonNull
+    private BluetoothSocket openSocket() throws IOException {
+        int channel = bluetoothDevice.getBondState() == BluetoothDevice.BOND_BONDED ? channels.getInt(address, 0) : 0;
+        if (channel > 0) {
+            long start = SystemClock.elapsedRealtime();
+            BluetoothSocket socket = createChannelSocket(channel);
+            if (socket != null) {
+                try {
+                    socket.connect();
+                    record(METRIC_CONNECT, start);
+                    return socket;
+                } catch (IOException e) {
+                    close(socket);
+                    long elapsed = SystemClock.elapsedRealtime() - start;
+                    Log.v("REMOTE", "Channel " + channel + " failed after " + elapsed + " ms: " + e.getMessage());
+                    // A slow failure is a page timeout, the device is out of range and SDP would wait as long
+                    if (elapsed > FAST_FAIL) throw e;
+                }
+            }
+            channels.edit().remove(address).apply();
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        BluetoothSocket socket = bluetoothDevice.createRfcommSocketToServiceRecord(SPP_UUID);
+        try {
+            socket.connect();
+        } catch (IOException e) {
+            close(socket);
+            throw e;
+        }
+        record(METRIC_CONNECT, start);
+        record(METRIC_SDP_CONNECT, start);
+
+        int learned = readChannel(socket);
+        if (learned > 0 && learned <= MAX_CHANNEL && learned != channel) channels.edit().putInt(address, learned).apply();
+        return socket;
+    }
+
+    /** BluetoothDevice.createRfcommSocket(int) is hidden, it connects to a channel without SDP. */
+    @Nullable
+    private BluetoothSocket createChannelSocket(int channel) {
+        try {
+            Method method = bluetoothDevice.getClass().getMethod("createRfcommSocket", int.class);
+            return (BluetoothSocket) method.invoke(bluetoothDevice, channel);
+        } catch (Exception e) {
+            Log.v("REMOTE", "No direct channel socket", e);
+            return null;
+        }
+    }
+
+    /** The channel SDP resolved, kept in the hidden BluetoothSocket.mPort. -1 if not readable. */
+    private static int readChannel(@NonNull BluetoothSocket socket) {
+        try {
+            Field field = BluetoothSocket.class.getDeclaredField("mPort");
+            field.setAccessible(true);
+            return field.getInt(socket);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static void close(@NonNull BluetoothSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.v("REMOTE", "Socket not closed: " + e.getMessage());
         }
     }
 
+    @SuppressLint("MissingPermission")
+    private void onConnectFailed() {
+        int bondState = bluetoothDevice.getBondState();
+        if (bondState == BluetoothDevice.BOND_BONDING) {
+            // Still pairing, BOND_BONDED starts the connection again
+            Log.v("REMOTE", "Connect ended while bonding");
+            return;
+        }
+        if (bondState == BluetoothDevice.BOND_NONE && bondStart > 0 && bluetoothDevice.createBond()) {
+            // The stack did not pair from the socket, bond first and connect after
+            Log.v("REMOTE", "Bonding before connecting");
+            return;
+        }
+        handler.post(()-> listener.onError(ERROR_CONNECTION_FAILED));
+    }
+
     private void startReading() {
         stopReading = false;
+        decoder.reset();
         readThread = new Thread(() -> {
             byte[] buffer = new byte[1024];
             int bytes;
@@ -163,12 +320,16 @@ public class ClassicDeviceService {
                     }
 
                     if ((bytes = inputStream.read(buffer)) > 0) {
-                        final String receivedData = new String(buffer, 0, bytes);
-                        handler.post(()-> listener.onDataReceived(receivedData));
+                        recordReceived();
+                        decoder.feed(buffer, 0, bytes);
                     }
                 } catch (IOException e) {
-                    handler.post(()-> listener.onError(ERROR_READ_FAILED));
+                    // Closed on purpose, or a newer connection replaced this reader
+                    if (stopReading || readThread != Thread.currentThread()) break;
+                    // The link is gone, free the socket so a reconnect can open a new one
                     stopReading = true;
+                    closeSocket();
+                    handler.post(()-> listener.onError(ERROR_READ_FAILED));
                     break;
                 }
             }
@@ -183,9 +344,41 @@ public class ClassicDeviceService {
         }
     }
 
+    private void record(int metric, long start) {
+        latency.record(TRANSPORT_CLASSIC, address, metric, SystemClock.elapsedRealtime() - start);
+    }
+
+    private void recordReceived() {
+        lastReceived = SystemClock.elapsedRealtime();
+        if (dataStart > 0) {
+            record(METRIC_FIRST_NOTIFICATION, dataStart);
+            dataStart = 0;
+        }
+    }
+
+    private synchronized void closeSocket() {
+        stopWriter();
+        try {
+            if (outputStream != null) outputStream.close();
+            if (inputStream != null) inputStream.close();
+            if (bluetoothSocket != null) bluetoothSocket.close();
+        } catch (IOException e) {
+            Log.v("REMOTE", "Socket not closed: " + e.getMessage());
+        }
+        outputStream = null;
+        inputStream = null;
+        bluetoothSocket = null;
+    }
+
+    private void stopWriter() {
+        RfcommWriter current = writer;
+        writer = null;
+        if (current != null) current.stop();
+    }
+
     // PUBLIC METHODS
     public void connectDevice() {
-        new Thread(() -> {
+        CONNECT_EXECUTOR.execute(() -> {
             bluetoothDevice = bluetoothAdapter.getRemoteDevice(address);
             if (notDeviceReady()) return;
 
@@ -197,17 +390,16 @@ public class ClassicDeviceService {
             }
 
             if (bluetoothAdapter.isDiscovering()) bluetoothAdapter.cancelDiscovery();
-            if(bluetoothDevice.getBondState() == BluetoothDevice.BOND_BONDED) {
-                startConnection();
-            } else {
-                bluetoothDevice.createBond();
-            }
-        }).start();
+            // Without a bond the socket pairs during its connect, both in one step
+            if (bluetoothDevice.getBondState() != BluetoothDevice.BOND_BONDED) bondStart = SystemClock.elapsedRealtime();
+            startConnection();
+        });
     }
 
     public void disconnectDevice() {
         try {
             stopReading();
+            stopWriter();
             if (outputStream != null) outputStream.close();
             if (inputStream != null) inputStream.close();
             if (bluetoothSocket != null) bluetoothSocket.close();
@@ -217,19 +409,43 @@ public class ClassicDeviceService {
         }
     }
 
-    public void sendData(@NonNull String data) {
-        try {
-            if(bluetoothDevice == null || outputStream == null){
-                throw new IOException("Cannot sent data");
-            }
-            outputStream.write(data.getBytes());
-        } catch (IOException e) {
+    /**
+     * Queue a command for the writer thread. Fails with ERROR_SEND_FAILED when there is
+     * no connection or the queue is full, returns false in that case.
+     */
+    public boolean sendData(@NonNull String data) {
+        RfcommWriter current = writer;
+        if (bluetoothDevice == null || current == null || !current.offer(data.getBytes())) {
             handler.post(()-> listener.onError(ERROR_SEND_FAILED));
+            return false;
         }
+        return true;
+    }
+
+    /** SystemClock.elapsedRealtime() of the last data read, or of the connect before any. */
+    public long getLastReceived() {
+        return lastReceived;
+    }
+
+    /**
+     * A command got the answer it was waiting for, called by the command client that
+     * matched it. Lock state pushes and heartbeat traffic never count.
+     */
+    public void recordRoundTrip(long elapsed) {
+        latency.record(TRANSPORT_CLASSIC, address, METRIC_COMMAND, elapsed);
+    }
+
+    /** Commands queued and not written yet. */
+    public int getPendingWrites() {
+        RfcommWriter current = writer;
+        return current != null ? current.getDepth() : 0;
     }
 
     public interface ClassicDeviceEventListener {
-        void onDataReceived(String data);
+        /** The device reported "Device Locked" (true) or "Device Unlocked". */
+        void onLockState(boolean locked);
+        /** Any other line, type is one of ClassicLineDecoder.TYPE_*. */
+        void onLineReceived(int type, @NonNull String key, @NonNull String value);
         void onConnected();
         void onDisconnected();
         void onConnectionLosing();
@@ -0,0 +1,209 @@
+package com.fapr.bluetoothcontrol.services;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.fapr.bluetoothcontrol.models.LockResponseModel;
+
+/**
+ * NOTICE A HALF-OPEN RFCOMM LINK BEFORE THE USER DOES
+ * <p>
+ * A socket whose device walked away keeps blocking in read() without an error, so
+ * the ELOCK is asked for its state when nothing was read for one interval. Any data
+ * counts as a heartbeat: while the device talks, no probe is sent. A probe without
+ * answer marks the link degraded, MAX_MISSED in a row end it.
+ * <p>
+ * The probe timeout follows the measured round trip like TCP does (smoothed RTT plus
+ * four times its variation). The interval starts at ACTIVE_INTERVAL and doubles up to
+ * IDLE_INTERVAL while the user does nothing, onActivity() brings it back.
+ * <p>
+ * Must be used from the main thread, like LockCommandClient.
+ */
+public class ClassicHeartbeat {
+    // PROPERTIES
+    public static final long ACTIVE_INTERVAL = 2000;
+    public static final long IDLE_INTERVAL = 30000;
+    public static final long IDLE_AFTER = 30000;
+    public static final long MIN_TIMEOUT = 1000;
+    public static final int MAX_MISSED = 3;
+    private final ClassicDeviceService device;
+    private final LockCommandClient client;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable tick = this::tick;
+    private boolean running;
+    private boolean probing;
+    private long interval = ACTIVE_INTERVAL;
+    private long lastActivity;
+    private int missed;
+    private long smoothedRtt = -1;
+    private long rttVariation;
+    private long probes;
+
+    // CONSTRUCTOR
+    public ClassicHeartbeat(@NonNull ClassicDeviceService device, @NonNull LockCommandClient client, @NonNull Listener listener) {
+        this.device = device;
+        this.client = client;
+        this.listener = listener;
+    }
+
+    // PRIVATE METHODS
+    private void schedule(long delay) {
+        handler.removeCallbacks(tick);
+        handler.postDelayed(tick, Math.max(0, delay));
+    }
+
+    private void tick() {
+        if (!running || probing) return;
+
+        long silence = SystemClock.elapsedRealtime() - device.getLastReceived();
+        if (silence < interval) {
+            if (missed > 0) {
+                missed = 0;
+                listener.onAlive();
+            }
+            // The device keeps talking so no probe runs, the user may still be idle
+            backOff();
+            schedule(interval - silence);
+            return;
+        }
+        // Commands of the user are waiting for their answer, that answer will do
+        if (client.getInFlight() > 0) {
+            schedule(getTimeout());
+            return;
+        }
+
+        probing = true;
+        probes++;
+        client.readState(getTimeout(), this::onProbe);
+    }
+
+    private void onProbe(@NonNull LockResponseModel response) {
+        probing = false;
+        if (!running) return;
+
+        int status = response.getStatus();
+        // The link went down and the client was cleared, the disconnection is already known
+        if (status == LockResponseModel.STATUS_CANCELLED) return;
+
+        if (status == LockResponseModel.STATUS_OK || status == LockResponseModel.STATUS_ERROR) {
+            if (response.getRoundTrip() >= 0) updateRtt(response.getRoundTrip());
+            if (missed > 0) {
+                missed = 0;
+                listener.onAlive();
+            }
+            backOff();
+            schedule(interval);
+            return;
+        }
+
+        missed++;
+        Log.v("HEARTBEAT", "Probe " + probes + " missed (" + missed + "/" + MAX_MISSED + "), status " + status);
+        if (missed >= MAX_MISSED) {
+            stop();
+            listener.onLost();
+            return;
+        }
+        if (missed == 1) listener.onDegraded();
+        // Ask again right away, a busy radio may only have lost one answer
+        interval = ACTIVE_INTERVAL;
+        schedule(0);
+    }
+
+    /** Double the interval, up to IDLE_INTERVAL, once the user did nothing for IDLE_AFTER. */
+    private void backOff() {
+        if (SystemClock.elapsedRealtime() - lastActivity > IDLE_AFTER) {
+            interval = Math.min(interval * 2, IDLE_INTERVAL);
+        }
+    }
+
+    private void updateRtt(long rtt) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariation = rtt / 2;
+            return;
+        }
+        rttVariation = (3 * rttVariation + Math.abs(smoothedRtt - rtt)) / 4;
+        smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+    }
+
+    // PUBLIC METHODS
+    /** Call once the socket is open. */
+    public void start() {
+        if (running) return;
+        running = true;
+        missed = 0;
+        interval = ACTIVE_INTERVAL;
+        lastActivity = SystemClock.elapsedRealtime();
+        schedule(interval);
+    }
+
+    /** A probe still waiting is ignored when it ends. */
+    public void stop() {
+        running = false;
+        handler.removeCallbacks(tick);
+    }
+
+    /** The user did something, check the link often again. */
+    public void onActivity() {
+        lastActivity = SystemClock.elapsedRealtime();
+        if (!running || interval == ACTIVE_INTERVAL) return;
+
+        interval = ACTIVE_INTERVAL;
+        schedule(0);
+    }
+
+    /** Something hinted the link may be going (an ACL broadcast), probe now. */
+    public void checkNow() {
+        if (!running) return;
+
+        interval = ACTIVE_INTERVAL;
+        schedule(0);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /** Milliseconds a probe may wait for its answer. */
+    public long getTimeout() {
+        if (smoothedRtt < 0) return LockCommandClient.REQUEST_TIMEOUT;
+        return Math.max(MIN_TIMEOUT, Math.min(LockCommandClient.REQUEST_TIMEOUT, smoothedRtt + 4 * rttVariation));
+    }
+
+    /** Milliseconds until the next check while the link is quiet. */
+    public long getInterval() {
+        return interval;
+    }
+
+    /** Smoothed probe round trip in milliseconds, -1 before the first answer. */
+    public long getRoundTrip() {
+        return smoothedRtt;
+    }
+
+    /** Milliseconds since anything was read from the device. */
+    public long getSilence() {
+        return SystemClock.elapsedRealtime() - device.getLastReceived();
+    }
+
+    /** Probes without answer in a row. */
+    public int getMissed() {
+        return missed;
+    }
+
+    /**
+     * Called on the main thread.
+     */
+    public interface Listener {
+        /** A probe went unanswered, the link may be going. */
+        void onDegraded();
+        /** A probe was answered after a degraded period. */
+        void onAlive();
+        /** MAX_MISSED probes in a row went unanswered, the heartbeat stopped. */
+        void onLost();
+    }
+}
@@ -0,0 +1,219 @@
+package com.fapr.bluetoothcontrol.services;
+
+import androidx.annotation.NonNull;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * SPLIT THE ELOCK SERIAL STREAM INTO MESSAGES
+ * <p>
+ * read() returns whatever arrived, a status line can come in two pieces and one chunk
+ * can carry several lines. feed() copies the bytes into a reusable line buffer and
+ * each time a line ends (\n, \r or \r\n) classifies it in place:
+ * <p>
+ * - "Device Locked" / "Device Unlocked": onLockState(), no String is created.
+ * - "key: value" or "key=value": TYPE_SETTING or TYPE_INFO. The type comes from the
+ *   last "settings" or "info" header, a blank line ends it. Outside a section the
+ *   known setting keys are settings and the rest info.
+ * - Lines mentioning error, invalid or unknown, or keyed "error": TYPE_ERROR.
+ * - Anything else: TYPE_TEXT.
+ * <p>
+ * Lines longer than MAX_LINE are dropped whole and counted. Not thread safe, feed it
+ * from the read thread only.
+ */
+public class ClassicLineDecoder {
+    // PROPERTIES
+    public static final int TYPE_SETTING = 0;
+    public static final int TYPE_INFO = 1;
+    public static final int TYPE_ERROR = 2;
+    public static final int TYPE_TEXT = 3;
+    public static final int MAX_LINE = 256;
+    private static final int SECTION_NONE = -1;
+    private static final byte[] UNLOCKED = ascii("device unlocked");
+    private static final byte[] LOCKED = ascii("device locked");
+    private static final byte[] SETTINGS = ascii("settings");
+    private static final byte[] INFO = ascii("info");
+    private static final byte[][] ERRORS = {ascii("error"), ascii("invalid"), ascii("unknown")};
+    private static final byte[][] SETTING_KEYS = {ascii("mode"), ascii("locktimer"), ascii("lock timer"),
+            ascii("serial"), ascii("output"), ascii("parking")};
+
+    private final Listener listener;
+    private final byte[] line = new byte[MAX_LINE];
+    private int length;
+    private boolean overflow;
+    private boolean afterCr;
+    private int section = SECTION_NONE;
+    private long lines;
+    private long overflows;
+
+    // CONSTRUCTOR
+    public ClassicLineDecoder(@NonNull Listener listener) {
+        this.listener = listener;
+    }
+
+    // PRIVATE METHODS
+    @NonNull
+    private static byte[] ascii(@NonNull String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static int lower(int value) {
+        return value >= 'A' && value <= 'Z' ? value + 32 : value;
+    }
+
+    private static boolean isSpace(byte value) {
+        return value == ' ' || value == '\t';
+    }
+
+    /** Case insensitive search of a lower case pattern in line[from, to). */
+    private int indexOf(@NonNull byte[] pattern, int from, int to) {
+        for (int i = from; i <= to - pattern.length; i++) {
+            int j = 0;
+            while (j < pattern.length && lower(line[i + j]) == pattern[j]) j++;
+            if (j == pattern.length) return i;
+        }
+        return -1;
+    }
+
+    /** Case insensitive comparison of line[from, to) with a lower case pattern. */
+    private boolean equalsAt(@NonNull byte[] pattern, int from, int to) {
+        return to - from == pattern.length && indexOf(pattern, from, to) == from;
+    }
+
+    private void endLine() {
+        if (overflow) {
+            overflow = false;
+            overflows++;
+            length = 0;
+            return;
+        }
+
+        int start = 0;
+        int end = length;
+        length = 0;
+        while (start < end && isSpace(line[start])) start++;
+        while (end > start && isSpace(line[end - 1])) end--;
+
+        if (start == end) {
+            section = SECTION_NONE;
+            return;
+        }
+        lines++;
+        classify(start, end);
+    }
+
+    private void classify(int start, int end) {
+        if (indexOf(UNLOCKED, start, end) >= 0) {
+            listener.onLockState(false);
+            return;
+        }
+        if (indexOf(LOCKED, start, end) >= 0) {
+            listener.onLockState(true);
+            return;
+        }
+
+        int separator = -1;
+        for (int i = start; i < end; i++) {
+            if (line[i] == ':' || line[i] == '=') {
+                separator = i;
+                break;
+            }
+        }
+        int keyEnd = separator;
+        while (keyEnd > start && isSpace(line[keyEnd - 1])) keyEnd--;
+
+        if (separator < 0 || separator == end - 1 || keyEnd == start) {
+            if (isError(start, end)) listener.onLine(TYPE_ERROR, "", text(start, end));
+            // Headers look like "Settings", "--- Info ---" or "settings:"
+            else if (indexOf(SETTINGS, start, end) >= 0) section = TYPE_SETTING;
+            else if (indexOf(INFO, start, end) >= 0) section = TYPE_INFO;
+            else listener.onLine(TYPE_TEXT, "", text(start, end));
+            return;
+        }
+
+        // "Error: invalid command", but not "version: unknown"
+        if (isError(start, keyEnd)) {
+            listener.onLine(TYPE_ERROR, "", text(start, end));
+            return;
+        }
+
+        int valueStart = separator + 1;
+        while (valueStart < end && isSpace(line[valueStart])) valueStart++;
+        int type = section;
+        if (type == SECTION_NONE) {
+            type = TYPE_INFO;
+            for (byte[] key : SETTING_KEYS) {
+                if (equalsAt(key, start, keyEnd)) {
+                    type = TYPE_SETTING;
+                    break;
+                }
+            }
+        }
+        listener.onLine(type, text(start, keyEnd), text(valueStart, end));
+    }
+
+    private boolean isError(int start, int end) {
+        for (byte[] error : ERRORS) {
+            if (indexOf(error, start, end) >= 0) return true;
+        }
+        return false;
+    }
+
+    @NonNull
+    private String text(int start, int end) {
+        return new String(line, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    // PUBLIC METHODS
+    /**
+     * Decode the next bytes of the stream, events for every line they complete are
+     * delivered before this returns.
+     */
+    public void feed(@NonNull byte[] data, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            byte value = data[i];
+            if (value == '\n' || value == '\r') {
+                // \r\n is one line end, not an end plus a blank line
+                boolean pair = value == '\n' && afterCr;
+                afterCr = value == '\r';
+                if (!pair) endLine();
+                continue;
+            }
+
+            afterCr = false;
+            if (length == MAX_LINE) {
+                overflow = true;
+                continue;
+            }
+            line[length++] = value;
+        }
+    }
+
+    /** Forget the partial line and the section, for a new connection. */
+    public void reset() {
+        length = 0;
+        overflow = false;
+        afterCr = false;
+        section = SECTION_NONE;
+    }
+
+    /** Lines decoded, blank ones aside. */
+    public long getLines() {
+        return lines;
+    }
+
+    /** Lines dropped for being longer than MAX_LINE. */
+    public long getOverflows() {
+        return overflows;
+    }
+
+    /**
+     * Called on the thread that feeds the decoder.
+     */
+    public interface Listener {
+        void onLockState(boolean locked);
+
+        /** key is empty for TYPE_ERROR and TYPE_TEXT, value holds the whole line. */
+        void onLine(int type, @NonNull String key, @NonNull String value);
+    }
+}
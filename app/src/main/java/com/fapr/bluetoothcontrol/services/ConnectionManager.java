@@ -0,0 +1,176 @@
+package com.fapr.bluetoothcontrol.services;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * LE LINKS SHARED BY EVERY SCREEN OF THE PROCESS
+ * <p>
+ * Control screens attach to the LEDeviceService of an address instead of creating
+ * their own, and detach when they close. A detached link stays connected for
+ * IDLE_TIMEOUT, so going back to the list and opening the same sensor again skips
+ * the connection and the service discovery. At most MAX_LINKS are kept, the least
+ * recently used detached link is closed first.
+ * <p>
+ * Services are built with the application context so no screen is leaked.
+ * Must be used from the main thread.
+ */
+public class ConnectionManager {
+    // Android allows 7 or more LE links, leave room for the scanner and other apps
+    public static final int MAX_LINKS = 4;
+    public static final long IDLE_TIMEOUT = 60000;
+    private static ConnectionManager instance;
+
+    private final Context context;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Map<String, Link> links = new LinkedHashMap<>(8, 0.75f, true);
+    private int warmAttaches;
+    private int coldAttaches;
+
+    private ConnectionManager(@NonNull Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    @NonNull
+    public static synchronized ConnectionManager getInstance(@NonNull Context context) {
+        if (instance == null) instance = new ConnectionManager(context);
+        return instance;
+    }
+
+    // PUBLIC METHODS
+    /**
+     * Get the link of an address, creating it when there is none. Events go to listener until detach().
+     * Check LEDeviceService.isReady() to know if the link can be used right away.
+     */
+    @NonNull
+    public LEDeviceService attach(@NonNull String address, @NonNull UUID serviceUUID, @NonNull UUID characteristicUUID,
+                                  @NonNull LEDeviceService.LEDeviceEventListener listener) {
+        Link link = links.get(address);
+        if (link == null) {
+            link = new Link(address, new LEDeviceService(context, address, serviceUUID, characteristicUUID, listener));
+            links.put(address, link);
+            coldAttaches++;
+        } else {
+            handler.removeCallbacks(link.expire);
+            link.service.setListener(listener);
+            if (link.service.isReady()) warmAttaches++;
+            else coldAttaches++;
+        }
+
+        link.attached = true;
+        trim();
+        return link.service;
+    }
+
+    /**
+     * The screen of listener is closing, keep the link warm for IDLE_TIMEOUT.
+     */
+    public void detach(@NonNull String address, @NonNull LEDeviceService.LEDeviceEventListener listener) {
+        Link link = links.get(address);
+        if (link == null || !link.attached || link.service.getListener() != listener) return;
+
+        link.attached = false;
+        link.service.setListener(IDLE_LISTENER);
+        handler.postDelayed(link.expire, IDLE_TIMEOUT);
+        trim();
+    }
+
+    /** Disconnect and forget the link of an address. */
+    public void close(@NonNull String address) {
+        Link link = links.remove(address);
+        if (link == null) return;
+
+        handler.removeCallbacks(link.expire);
+        link.service.close();
+    }
+
+    public int size() {
+        return links.size();
+    }
+
+    /** True when a link to address is kept, attached or warm. */
+    public boolean contains(@NonNull String address) {
+        return links.containsKey(address);
+    }
+
+    /** True when a screen is using the link of address right now. */
+    public boolean isAttached(@NonNull String address) {
+        Link link = links.get(address);
+        return link != null && link.attached;
+    }
+
+    /** Attaches that found the link ready, the rest had to connect. */
+    public int getWarmAttaches() {
+        return warmAttaches;
+    }
+
+    public int getColdAttaches() {
+        return coldAttaches;
+    }
+
+    // PRIVATE METHODS
+    private void trim() {
+        // Access order puts the least recently used first
+        Iterator<Link> iterator = links.values().iterator();
+        while (links.size() > MAX_LINKS && iterator.hasNext()) {
+            Link link = iterator.next();
+            if (link.attached) continue;
+
+            iterator.remove();
+            handler.removeCallbacks(link.expire);
+            link.service.close();
+            Log.v("LINKS", "Closed " + link.address + " to make room");
+        }
+    }
+
+    private class Link {
+        final String address;
+        final LEDeviceService service;
+        final Runnable expire;
+        boolean attached;
+
+        Link(@NonNull String address, @NonNull LEDeviceService service) {
+            this.address = address;
+            this.service = service;
+            this.expire = () -> {
+                Log.v("LINKS", "Closed idle " + address + ", warm attaches " + warmAttaches + " of " + (warmAttaches + coldAttaches));
+                close(address);
+            };
+        }
+    }
+
+    private static final LEDeviceService.LEDeviceEventListener IDLE_LISTENER = new LEDeviceService.LEDeviceEventListener() {
+        @Override
+        public void onCommunicationReady() {
+        }
+
+        @Override
+        public void onDataReceived(byte[] data) {
+        }
+
+        @Override
+        public void onConnected() {
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+
+        @Override
+        public void onConnectionLosing() {
+        }
+
+        @Override
+        public void onError(int error) {
+        }
+    };
+}
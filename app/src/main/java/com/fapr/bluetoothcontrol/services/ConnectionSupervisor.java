@@ -0,0 +1,240 @@
+package com.fapr.bluetoothcontrol.services;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.Random;
+
+/**
+ * KEEP A DEVICE CONNECTED
+ * <p>
+ * Tracks the link of one device through IDLE, CONNECTING, DISCOVERING, READY,
+ * DEGRADED and BACKOFF. A link lost without the user asking for it is brought back
+ * with jittered exponential backoff: BASE_DELAY, doubled per failed attempt up to
+ * MAX_DELAY, each delay picked at random between half and all of it so devices that
+ * dropped together do not retry together. After MAX_ATTEMPTS it stops and goes IDLE.
+ * <p>
+ * No more than MAX_CONCURRENT attempts run in the process at once, a supervisor
+ * without a free slot waits in BACKOFF. Reconnect success rate and time to recover
+ * are kept per supervisor.
+ * <p>
+ * The owner forwards the events of the device service to the on*() methods and does
+ * the actual connection in Connector. Must be used from the main thread.
+ */
+public class ConnectionSupervisor {
+    // PROPERTIES
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_DISCOVERING = 2;
+    public static final int STATE_READY = 3;
+    public static final int STATE_DEGRADED = 4;
+    public static final int STATE_BACKOFF = 5;
+    private static final String[] STATE_NAMES = {"idle", "connecting", "discovering", "ready", "degraded", "backoff"};
+    public static final long BASE_DELAY = 1000;
+    public static final long MAX_DELAY = 30000;
+    public static final int MAX_ATTEMPTS = 8;
+    public static final int MAX_CONCURRENT = 2;
+    // LE connections give up on their own after 30 s, do not wait that long
+    public static final long CONNECT_TIMEOUT = 15000;
+    private static final Random random = new Random();
+    private static int activeAttempts;
+
+    private final String name;
+    private final Connector connector;
+    private final StateListener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private int state = STATE_IDLE;
+    private int attempt;
+    private long retryDelay;
+    private boolean holdingSlot;
+    private long lostAt;
+    private int losses;
+    private int recoveries;
+    private int gaveUp;
+    private long recoverTotal;
+    private long recoverMax;
+
+    // EVENTS
+    private final Runnable retry = this::attempt;
+    private final Runnable timeout = this::onTimeout;
+
+    // CONSTRUCTOR
+    public ConnectionSupervisor(@NonNull String name, @NonNull Connector connector, @NonNull StateListener listener) {
+        this.name = name;
+        this.connector = connector;
+        this.listener = listener;
+    }
+
+    // PRIVATE METHODS
+    private void setState(int state) {
+        if (this.state == state) return;
+        Log.v("LINK", name + " " + STATE_NAMES[this.state] + " -> " + STATE_NAMES[state]);
+        this.state = state;
+        listener.onStateChanged(state);
+    }
+
+    private void attempt() {
+        if (!holdingSlot) {
+            if (activeAttempts >= MAX_CONCURRENT) {
+                // Not an attempt of ours, try again without growing the delay. Out of IDLE
+                // first, a start() meanwhile would schedule a second attempt
+                retryDelay = BASE_DELAY;
+                setState(STATE_BACKOFF);
+                handler.postDelayed(retry, BASE_DELAY);
+                return;
+            }
+            activeAttempts++;
+            holdingSlot = true;
+        }
+
+        setState(STATE_CONNECTING);
+        handler.postDelayed(timeout, CONNECT_TIMEOUT);
+        connector.connect(lostAt > 0);
+    }
+
+    private void onTimeout() {
+        Log.v("LINK", name + " attempt " + attempt + " timed out in " + STATE_NAMES[state]);
+        onLost();
+        // Already in BACKOFF, the events of the aborted attempt are ignored
+        connector.abort();
+    }
+
+    private void releaseSlot() {
+        if (!holdingSlot) return;
+        holdingSlot = false;
+        activeAttempts--;
+    }
+
+    private void cancelPending() {
+        handler.removeCallbacks(retry);
+        handler.removeCallbacks(timeout);
+        releaseSlot();
+    }
+
+    // PUBLIC METHODS
+    /** The user asked to connect, resets the backoff. */
+    public void start() {
+        if (state != STATE_IDLE) return;
+        attempt = 0;
+        lostAt = 0;
+        attempt();
+    }
+
+    /** The user asked to disconnect, nothing is retried until start(). */
+    public void stop() {
+        cancelPending();
+        lostAt = 0;
+        setState(STATE_IDLE);
+    }
+
+    /** The link is up, services are still unknown. */
+    public void onConnected() {
+        if (state == STATE_CONNECTING) setState(STATE_DISCOVERING);
+    }
+
+    /** Commands can be sent. Also used when a warm link is picked up. */
+    public void onReady() {
+        cancelPending();
+        if (lostAt > 0) {
+            long elapsed = SystemClock.elapsedRealtime() - lostAt;
+            recoveries++;
+            recoverTotal += elapsed;
+            recoverMax = Math.max(recoverMax, elapsed);
+            lostAt = 0;
+            Log.v("LINK", name + " recovered in " + elapsed + " ms after " + attempt + " attempts, success rate "
+                    + Math.round(getSuccessRate() * 100) + "%");
+        }
+        attempt = 0;
+        setState(STATE_READY);
+    }
+
+    /** The link may be going down, for example the stack asked to drop it. */
+    public void onDegraded() {
+        if (state == STATE_READY) setState(STATE_DEGRADED);
+    }
+
+    /** Data came in, a degraded link is fine after all. */
+    public void onAlive() {
+        if (state == STATE_DEGRADED) setState(STATE_READY);
+    }
+
+    /**
+     * The link went down or the attempt failed. Schedules the next attempt unless the
+     * user stopped the link or one is already scheduled.
+     */
+    public void onLost() {
+        if (state == STATE_IDLE || state == STATE_BACKOFF) return;
+
+        if (state == STATE_READY || state == STATE_DEGRADED) {
+            losses++;
+            lostAt = SystemClock.elapsedRealtime();
+            attempt = 0;
+        }
+        cancelPending();
+
+        if (attempt >= MAX_ATTEMPTS) {
+            // A first connection that never came up is not a failed recovery
+            if (lostAt > 0) gaveUp++;
+            Log.v("LINK", name + " gave up after " + attempt + " attempts");
+            lostAt = 0;
+            setState(STATE_IDLE);
+            return;
+        }
+
+        long delay = Math.min(MAX_DELAY, BASE_DELAY << attempt);
+        retryDelay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+        attempt++;
+        setState(STATE_BACKOFF);
+        handler.postDelayed(retry, retryDelay);
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    /** Attempts made since the link was lost, 0 when ready. */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    /** Milliseconds until the attempt scheduled in BACKOFF. */
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    /** Share of lost links that came back, 1 when none was lost. */
+    public float getSuccessRate() {
+        int finished = recoveries + gaveUp;
+        return finished == 0 ? 1f : recoveries / (float) finished;
+    }
+
+    /** Average milliseconds from losing the link to ready again, -1 if none recovered. */
+    public long getAverageRecovery() {
+        return recoveries == 0 ? -1 : recoverTotal / recoveries;
+    }
+
+    public long getMaxRecovery() {
+        return recoverMax;
+    }
+
+    public int getLosses() {
+        return losses;
+    }
+
+    /**
+     * Starts one connection attempt, retry is true when the link was lost before.
+     * Every outcome must come back through the on*() methods.
+     */
+    public interface Connector {
+        void connect(boolean retry);
+        void abort();
+    }
+
+    public interface StateListener {
+        void onStateChanged(int state);
+    }
+}
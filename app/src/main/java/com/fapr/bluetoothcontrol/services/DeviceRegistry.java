@@ -0,0 +1,106 @@
+package com.fapr.bluetoothcontrol.services;
+
+import static com.fapr.bluetoothcontrol.utils.DataUtil.normalizeMac;
+
+import androidx.annotation.NonNull;
+
+import com.fapr.bluetoothcontrol.models.DeviceModel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DEVICES FOUND DURING A SEARCH, KEYED BY MAC
+ * <p>
+ * Dedupe and update are O(1) no matter how many devices were seen. Items are
+ * replaced instead of mutated, so snapshots handed to a list differ can be
+ * compared with the previous ones. Snapshots are ordered closest first.
+ * <p>
+ * The time each device was last heard lives next to its model, outside of it,
+ * so a fresh advertisement with the same content does not produce a new item.
+ */
+public class DeviceRegistry {
+    // Smaller RSSI moves are noise and would only reorder the list
+    private static final int RSSI_STEP = 3;
+    private final Map<String, Entry> devices = new LinkedHashMap<>();
+
+    /**
+     * Returns true when the device is new or its name changed.
+     */
+    public boolean put(@NonNull String name, @NonNull String address) {
+        return put(name, address, Integer.MIN_VALUE, 0);
+    }
+
+    /**
+     * Returns true when the device is new, its name changed or its RSSI moved enough to matter.
+     * The timestamp is in elapsed realtime nanoseconds.
+     */
+    public boolean put(@NonNull String name, @NonNull String address, int rssi, long timestamp) {
+        String key = normalizeMac(address);
+        Entry entry = devices.get(key);
+        if (entry == null) {
+            devices.put(key, new Entry(new DeviceModel(name, address, rssi), timestamp));
+            return true;
+        }
+
+        entry.lastSeen = Math.max(entry.lastSeen, timestamp);
+        DeviceModel current = entry.model;
+        if (name.equals(current.getName()) && Math.abs((long) rssi - current.getRssi()) < RSSI_STEP) return false;
+
+        entry.model = new DeviceModel(name, address, rssi);
+        return true;
+    }
+
+    /**
+     * Drop devices not heard from in maxAge nanoseconds, timestamps as given to put().
+     * Devices put without a timestamp are kept.
+     */
+    public boolean removeStale(long now, long maxAge) {
+        boolean removed = false;
+        Iterator<Entry> iterator = devices.values().iterator();
+        while (iterator.hasNext()) {
+            long lastSeen = iterator.next().lastSeen;
+            if (lastSeen > 0 && now - lastSeen > maxAge) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    public void clear() {
+        devices.clear();
+    }
+
+    public boolean isEmpty() {
+        return devices.isEmpty();
+    }
+
+    public int size() {
+        return devices.size();
+    }
+
+    @NonNull
+    public List<DeviceModel> snapshot() {
+        List<DeviceModel> list = new ArrayList<>(devices.size());
+        for (Entry entry : devices.values()) {
+            list.add(entry.model);
+        }
+        Collections.sort(list, (first, second) -> Integer.compare(second.getRssi(), first.getRssi()));
+        return list;
+    }
+
+    private static class Entry {
+        DeviceModel model;
+        long lastSeen;
+
+        Entry(DeviceModel model, long lastSeen) {
+            this.model = model;
+            this.lastSeen = lastSeen;
+        }
+    }
+}
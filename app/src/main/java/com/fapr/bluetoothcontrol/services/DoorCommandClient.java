@@ -0,0 +1,160 @@
+package com.fapr.bluetoothcontrol.services;
+
+import static com.fapr.bluetoothcontrol.services.DoorService.OP_GET_TRIGGER;
+import static com.fapr.bluetoothcontrol.services.DoorService.OP_SET_TRIGGER;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fapr.bluetoothcontrol.models.DoorResponseModel;
+
+import java.util.ArrayDeque;
+
+/**
+ * SEND TSR1-B COMMANDS AND MATCH THEIR ANSWERS
+ * <p>
+ * Every request gets a sequence number and waits in a table keyed by opcode until
+ * a notification with the same opcode arrives or its timeout runs out. Several
+ * requests can be in flight at once. The sensor does not echo the sequence, so
+ * requests for the same opcode are answered in the order they were sent.
+ * <p>
+ * Must be used from the main thread, LEDeviceService delivers notifications there.
+ */
+public class DoorCommandClient {
+    public static final long REQUEST_TIMEOUT = 3000;
+    private final LEDeviceService device;
+    private final DoorService door;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final SparseArray<ArrayDeque<PendingRequest>> pending = new SparseArray<>();
+    private int sequence;
+    private long roundTripTotal;
+    private int roundTrips;
+
+    public DoorCommandClient(@NonNull LEDeviceService device, @NonNull DoorService door) {
+        this.device = device;
+        this.door = door;
+    }
+
+    // PUBLIC METHODS
+    /** Open (true) or close the door relay, opcode 0x6c. */
+    public int setTrigger(boolean open, @Nullable ResponseCallback callback) {
+        return send(OP_SET_TRIGGER, new byte[] { (byte) (open ? 0x01 : 0x00) }, REQUEST_TIMEOUT, callback);
+    }
+
+    /** Read the relay state, opcode 0x6d. Use DoorService.getTriggerStatus() on the answer. */
+    public int readTrigger(@Nullable ResponseCallback callback) {
+        return send(OP_GET_TRIGGER, null, REQUEST_TIMEOUT, callback);
+    }
+
+    /**
+     * Send a command and wait for its answer, returns the sequence number of the request.
+     */
+    public int send(int opcode, @Nullable byte[] content, long timeout, @Nullable ResponseCallback callback) {
+        PendingRequest request = new PendingRequest(opcode, ++sequence, device.getPriority(), callback);
+        ArrayDeque<PendingRequest> requests = pending.get(opcode);
+        if (requests == null) {
+            requests = new ArrayDeque<>();
+            pending.put(opcode, requests);
+        }
+        requests.add(request);
+        handler.postDelayed(request.expire, timeout);
+
+        device.sendData(door.getSensorCommand(opcode, content), (status, value, mtu) -> {
+            if (status != BluetoothGatt.GATT_SUCCESS) finish(request, DoorResponseModel.STATUS_NOT_SENT);
+        });
+        return request.sequence;
+    }
+
+    /**
+     * Give every notification to the client, returns false when no request was waiting for it.
+     */
+    public boolean onDataReceived(@NonNull byte[] data) {
+        if (data.length < 2) return false;
+
+        int opcode = data[1] & 0xFF;
+        ArrayDeque<PendingRequest> requests = pending.get(opcode);
+        PendingRequest request = requests != null ? requests.poll() : null;
+        if (request == null) return false;
+
+        handler.removeCallbacks(request.expire);
+        long roundTrip = SystemClock.elapsedRealtime() - request.sent;
+        roundTripTotal += roundTrip;
+        roundTrips++;
+        device.recordRoundTrip(request.priority, roundTrip);
+
+        // The characteristic value is reused by the next notification
+        DoorResponseModel response = new DoorResponseModel(opcode, request.sequence, data.clone(), roundTrip);
+        if (request.callback != null) request.callback.onResponse(response);
+        return true;
+    }
+
+    /** Fail every request still waiting, used when the link goes down. */
+    public void cancelAll() {
+        for (int i = 0; i < pending.size(); i++) {
+            ArrayDeque<PendingRequest> requests = pending.valueAt(i);
+            PendingRequest request;
+            while ((request = requests.poll()) != null) {
+                handler.removeCallbacks(request.expire);
+                if (request.callback != null) {
+                    request.callback.onResponse(DoorResponseModel.failed(request.opcode, request.sequence, DoorResponseModel.STATUS_CANCELLED));
+                }
+            }
+        }
+    }
+
+    /** Requests waiting for an answer. */
+    public int getInFlight() {
+        int count = 0;
+        for (int i = 0; i < pending.size(); i++) {
+            count += pending.valueAt(i).size();
+        }
+        return count;
+    }
+
+    /** Average milliseconds from request to answer, -1 if nothing was answered yet. */
+    public long getAverageRoundTrip() {
+        return roundTrips > 0 ? roundTripTotal / roundTrips : -1;
+    }
+
+    // PRIVATE METHODS
+    private void finish(@NonNull PendingRequest request, int status) {
+        ArrayDeque<PendingRequest> requests = pending.get(request.opcode);
+        if (requests == null || !requests.remove(request)) return;
+
+        handler.removeCallbacks(request.expire);
+        Log.v("DOOR", "Request " + request.sequence + " for 0x" + Integer.toHexString(request.opcode) + " failed: " + status);
+        if (request.callback != null) {
+            request.callback.onResponse(DoorResponseModel.failed(request.opcode, request.sequence, status));
+        }
+    }
+
+    private class PendingRequest {
+        final int opcode;
+        final int sequence;
+        final int priority;
+        final ResponseCallback callback;
+        final long sent = SystemClock.elapsedRealtime();
+        final Runnable expire = () -> finish(this, DoorResponseModel.STATUS_TIMEOUT);
+
+        PendingRequest(int opcode, int sequence, int priority, @Nullable ResponseCallback callback) {
+            this.opcode = opcode;
+            this.sequence = sequence;
+            this.priority = priority;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * Called on the main thread with the answer or with a failed response.
+     */
+    public interface ResponseCallback {
+        void onResponse(@NonNull DoorResponseModel response);
+    }
+}
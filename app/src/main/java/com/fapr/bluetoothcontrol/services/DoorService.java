@@ -1,5 +1,8 @@
 package com.fapr.bluetoothcontrol.services;
 import androidx.annotation.NonNull;
+
+import com.fapr.bluetoothcontrol.models.DoorResponseModel;
+
 import java.io.ByteArrayOutputStream;
 
 /**
@@ -22,6 +25,8 @@ public class DoorService {
     public static final Integer OPERATION_NOT_SUPPORTED = 0x06;
     */
     public static final Integer RESPONSE_ERROR = 0x08;
+    public static final int OP_SET_TRIGGER = 0x6c;
+    public static final int OP_GET_TRIGGER = 0x6d;
     private final String password;
 
     public DoorService(String password){
@@ -40,6 +45,11 @@ public class DoorService {
         return response[2] == 0x01;
     }
 
+    public boolean getTriggerStatus(@NonNull DoorResponseModel response) {
+        if(!response.isSuccessful() || response.getPayloadLength() < 1) return false;
+        return response.getPayloadByte(0) == 0x01;
+    }
+
     @NonNull
     public byte[] getSensorCommand(Integer operation, byte[] content) {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
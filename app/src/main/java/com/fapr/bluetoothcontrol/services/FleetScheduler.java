@@ -0,0 +1,243 @@
+package com.fapr.bluetoothcontrol.services;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * DECIDE WHICH SENSOR OF A FLEET TALKS NEXT
+ * <p>
+ * The scheduling of FleetSession without any Bluetooth: which device connects, which
+ * ready link sends its next command and which device is retried. The session turns
+ * the Driver calls into LEDeviceService work and feeds the results back.
+ * <p>
+ * Up to the given slots are open at once, MAX_CONNECTING of them still connecting.
+ * Ready links wait their turn in a round robin: each turn sends one command and the
+ * link goes back to the end of the line, so a device with many commands can not
+ * starve the rest. At most MAX_IN_FLIGHT commands are on air at once.
+ * <p>
+ * A device that fails goes back to the end of the pending list, freeing its slot for
+ * the next one, until it used MAX_TRIES connections. Not thread safe, FleetSession
+ * calls it from the main thread only.
+ */
+public class FleetScheduler {
+    // PROPERTIES
+    // The controller creates one connection at a time, more pending ones only wait in line
+    public static final int MAX_CONNECTING = 2;
+    public static final int MAX_IN_FLIGHT = 2;
+    public static final int MAX_TRIES = 2;
+
+    private final int[] opcodes;
+    private final Driver driver;
+    private final ArrayDeque<Device> pending = new ArrayDeque<>();
+    private final List<Device> links = new ArrayList<>();
+    private final ArrayDeque<Device> turns = new ArrayDeque<>();
+    private int slots;
+    private int connecting;
+    private int inFlight;
+    private int done;
+    private int total;
+    private boolean running;
+
+    // CONSTRUCTOR
+    /**
+     * @param opcodes DoorService.OP_* commands sent to every device, in order
+     */
+    public FleetScheduler(@NonNull int[] opcodes, @NonNull Driver driver) {
+        if (opcodes.length == 0) throw new IllegalArgumentException("A fleet session needs at least one command");
+        this.opcodes = opcodes.clone();
+        this.driver = driver;
+    }
+
+    // PRIVATE METHODS
+    /** Open links while there are free slots and devices waiting. */
+    private void fill() {
+        while (running && links.size() < slots && connecting < MAX_CONNECTING && !pending.isEmpty()) {
+            Device device = pending.poll();
+            device.tries++;
+            device.step = 0;
+            device.ready = false;
+            links.add(device);
+            connecting++;
+            driver.open(device.address, device.tries);
+        }
+        if (running && pending.isEmpty() && links.isEmpty()) {
+            running = false;
+            driver.onFinished();
+        }
+    }
+
+    /** Give turns to ready links, oldest first, while the air budget allows. */
+    private void pump() {
+        while (running && inFlight < MAX_IN_FLIGHT && !turns.isEmpty()) {
+            Device device = turns.poll();
+            device.sending = true;
+            inFlight++;
+            driver.send(device.address, opcodes[device.step]);
+        }
+    }
+
+    @Nullable
+    private Device find(@NonNull String address) {
+        for (Device device : links) {
+            if (device.address.equals(address)) return device;
+        }
+        return null;
+    }
+
+    private void release(@NonNull Device device) {
+        // Removed first, answers cancelled by close() find nothing to move on
+        links.remove(device);
+        turns.remove(device);
+        if (!device.ready) connecting--;
+        if (device.sending) {
+            device.sending = false;
+            inFlight--;
+        }
+        driver.close(device.address);
+    }
+
+    private void fail(@NonNull Device device, boolean retry) {
+        release(device);
+        if (retry && device.tries < MAX_TRIES && running) {
+            pending.add(device);
+        } else {
+            done++;
+            driver.onChecked(device.address, false, device.tries);
+        }
+        fill();
+        pump();
+    }
+
+    // PUBLIC METHODS
+    /**
+     * Check every address once, repeated ones are checked once.
+     *
+     * @param slots links the session may hold at the same time
+     */
+    public void start(@NonNull List<String> addresses, int slots) {
+        if (running) return;
+
+        pending.clear();
+        for (String address : new LinkedHashSet<>(addresses)) pending.add(new Device(address));
+        total = pending.size();
+        done = 0;
+        this.slots = Math.max(1, slots);
+        running = true;
+        fill();
+    }
+
+    /** Close every link, devices not checked yet get no result. */
+    public void stop() {
+        if (!running) return;
+
+        pending.clear();
+        for (Device device : new ArrayList<>(links)) release(device);
+        running = false;
+        driver.onFinished();
+    }
+
+    /** The link of address is connected and ready for commands. */
+    public void onReady(@NonNull String address) {
+        Device device = find(address);
+        if (device == null || device.ready) return;
+
+        device.ready = true;
+        connecting--;
+        turns.add(device);
+        pump();
+        fill();
+    }
+
+    /** The command sent to address got its answer, or failed without one. */
+    public void onResponse(@NonNull String address, boolean successful) {
+        Device device = find(address);
+        if (device == null || !device.sending) return;
+
+        device.sending = false;
+        inFlight--;
+        if (!successful) {
+            fail(device, true);
+            return;
+        }
+        if (++device.step < opcodes.length) {
+            turns.add(device);
+        } else {
+            release(device);
+            done++;
+            driver.onChecked(device.address, true, device.tries);
+            fill();
+        }
+        pump();
+    }
+
+    /** The link of address was lost, timed out or could not be opened, try it again later. */
+    public void onFailed(@NonNull String address) {
+        Device device = find(address);
+        if (device != null) fail(device, true);
+    }
+
+    /** The device of address can not be checked now, give up on it without retrying. */
+    public void onUnavailable(@NonNull String address) {
+        Device device = find(address);
+        if (device != null) fail(device, false);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /** Links open right now. */
+    public int getActiveLinks() {
+        return links.size();
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /** Devices finished, with or without success. */
+    public int getDone() {
+        return done;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    /** Index of the command the device of address is at, -1 when it has no link. */
+    public int getStep(@NonNull String address) {
+        Device device = find(address);
+        return device == null ? -1 : device.step;
+    }
+
+    private static class Device {
+        final String address;
+        int tries;
+        int step;
+        boolean ready;
+        boolean sending;
+
+        Device(@NonNull String address) {
+            this.address = address;
+        }
+    }
+
+    /**
+     * Work the scheduler asks for. Results go back later through onReady(), onResponse()
+     * and onFailed(), answers cancelled while close() runs are ignored.
+     */
+    public interface Driver {
+        /** Connect to address, tries counts this connection. */
+        void open(@NonNull String address, int tries);
+        void send(@NonNull String address, int opcode);
+        /** Drop the link of address, answers still pending may be cancelled. */
+        void close(@NonNull String address);
+        void onChecked(@NonNull String address, boolean successful, int tries);
+        void onFinished();
+    }
+}
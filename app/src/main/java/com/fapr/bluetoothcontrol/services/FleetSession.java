@@ -0,0 +1,248 @@
+package com.fapr.bluetoothcontrol.services;
+
+import static com.fapr.bluetoothcontrol.utils.BluetoothUtil.ERROR_READ_FAILED;
+import static com.fapr.bluetoothcontrol.utils.BluetoothUtil.ERROR_SEND_FAILED;
+import static com.fapr.bluetoothcontrol.utils.DataUtil.CHARACTERISTIC_UUID;
+import static com.fapr.bluetoothcontrol.utils.DataUtil.SENSOR_PASSWORD;
+import static com.fapr.bluetoothcontrol.utils.DataUtil.SERVICE_UUID;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.fapr.bluetoothcontrol.models.DoorResponseModel;
+import com.fapr.bluetoothcontrol.models.FleetResultModel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * RUN THE SAME COMMANDS ON MANY SENSORS AT ONCE
+ * <p>
+ * Used at shift change to check every door sensor of a site. A FleetScheduler decides
+ * which device connects and which one sends next, this class does the Bluetooth work.
+ * Up to PLATFORM_LINKS links are open at the same time, minus the ones
+ * ConnectionManager keeps for the screens, each with its own operation queue.
+ * <p>
+ * A sensor whose link ConnectionManager keeps warm is checked over that link and left
+ * warm afterwards, no second GATT client is opened for it. A sensor a screen is using
+ * right now is skipped and reported as failed.
+ * <p>
+ * A device that does not finish within CHECK_TIMEOUT is disconnected and goes back to
+ * the end of the pending list until it used FleetScheduler.MAX_TRIES connections.
+ * Must be used from the main thread.
+ */
+public class FleetSession {
+    // PROPERTIES
+    // Most controllers hold 7 LE links, leave one for the accessories of the phone
+    public static final int PLATFORM_LINKS = 6;
+    public static final long CHECK_TIMEOUT = 15000;
+
+    private final Context context;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final DoorService door = new DoorService(SENSOR_PASSWORD);
+    private final ConnectionManager connections;
+    private final FleetScheduler scheduler;
+    private final FleetListener listener;
+    private final Map<String, Link> links = new HashMap<>();
+    private final List<FleetResultModel> results = new ArrayList<>();
+    private long startTime;
+    private long endTime;
+
+    // EVENTS
+    private final FleetScheduler.Driver driver = new FleetScheduler.Driver() {
+        @Override
+        public void open(@NonNull String address, int tries) {
+            Link link = new Link(address);
+            links.put(address, link);
+            if (connections.isAttached(address)) {
+                Log.v("FLEET", address + " is open in a screen, skipped");
+                // Not from inside the scheduler, it is still opening
+                handler.post(() -> scheduler.onUnavailable(address));
+                return;
+            }
+
+            handler.postDelayed(link.timeout, CHECK_TIMEOUT);
+            if (connections.contains(address)) {
+                // Warm link, reuse its GATT client instead of opening another one
+                link.borrowed = true;
+                link.service = connections.attach(address, SERVICE_UUID, CHARACTERISTIC_UUID, link);
+                link.client = new DoorCommandClient(link.service, door);
+                if (link.service.isReady()) handler.post(link::onCommunicationReady);
+                else link.service.connectDevice();
+                return;
+            }
+
+            link.service = new LEDeviceService(context, address, SERVICE_UUID, CHARACTERISTIC_UUID, link);
+            link.client = new DoorCommandClient(link.service, door);
+            link.service.connectDevice();
+        }
+
+        @Override
+        public void send(@NonNull String address, int opcode) {
+            Link link = links.get(address);
+            if (link == null || link.client == null) return;
+
+            link.client.send(opcode, null, DoorCommandClient.REQUEST_TIMEOUT, response -> {
+                // Cancelled by close(), the scheduler already moved on
+                if (link.closed) return;
+
+                link.responses.add(response);
+                scheduler.onResponse(address, response.isSuccessful());
+            });
+        }
+
+        @Override
+        public void close(@NonNull String address) {
+            Link link = links.get(address);
+            if (link == null || link.closed) return;
+
+            link.closed = true;
+            handler.removeCallbacks(link.timeout);
+            if (link.client != null) link.client.cancelAll();
+            if (link.service == null) return;
+
+            if (link.borrowed) connections.detach(address, link);
+            else link.service.close();
+        }
+
+        @Override
+        public void onChecked(@NonNull String address, boolean successful, int tries) {
+            Link link = links.remove(address);
+            List<DoorResponseModel> responses = link != null ? link.responses : new ArrayList<>();
+            long duration = link != null ? SystemClock.elapsedRealtime() - link.opened : 0;
+            FleetResultModel result = new FleetResultModel(address, successful,
+                    Collections.unmodifiableList(responses), tries, duration);
+            results.add(result);
+            listener.onDeviceChecked(result, results.size(), scheduler.getTotal());
+        }
+
+        @Override
+        public void onFinished() {
+            links.clear();
+            endTime = SystemClock.elapsedRealtime();
+            int failed = 0;
+            for (FleetResultModel result : results) {
+                if (!result.isSuccessful()) failed++;
+            }
+            Log.v("FLEET", results.size() + " devices, " + failed + " failed, in " + (endTime - startTime) + " ms, "
+                    + String.format(Locale.US, "%.1f", getDevicesPerMinute()) + " devices/min");
+            listener.onFinished(new ArrayList<>(results));
+        }
+    };
+
+    // CONSTRUCTOR
+    /**
+     * @param opcodes DoorService.OP_* commands sent to every device, in order, at least one
+     */
+    public FleetSession(@NonNull Context context, @NonNull int[] opcodes, @NonNull FleetListener listener) {
+        this.context = context.getApplicationContext();
+        this.connections = ConnectionManager.getInstance(context);
+        this.scheduler = new FleetScheduler(opcodes, driver);
+        this.listener = listener;
+    }
+
+    // PUBLIC METHODS
+    /**
+     * Check every address, results arrive through the listener as each device finishes.
+     */
+    public void start(@NonNull List<String> addresses) {
+        if (scheduler.isRunning()) return;
+
+        results.clear();
+        links.clear();
+        startTime = SystemClock.elapsedRealtime();
+        endTime = 0;
+        scheduler.start(addresses, PLATFORM_LINKS - connections.size());
+    }
+
+    /** Close every link, devices not checked yet get no result. */
+    public void stop() {
+        scheduler.stop();
+    }
+
+    public boolean isRunning() {
+        return scheduler.isRunning();
+    }
+
+    /** Links open right now. */
+    public int getActiveLinks() {
+        return scheduler.getActiveLinks();
+    }
+
+    /** Devices finished, with or without success, per minute since start(). */
+    public float getDevicesPerMinute() {
+        long end = endTime > 0 ? endTime : SystemClock.elapsedRealtime();
+        long elapsed = Math.max(1, end - startTime);
+        return results.size() * 60000f / elapsed;
+    }
+
+    private class Link implements LEDeviceService.LEDeviceEventListener {
+        final String address;
+        final long opened = SystemClock.elapsedRealtime();
+        final List<DoorResponseModel> responses = new ArrayList<>();
+        final Runnable timeout = this::onTimeout;
+        LEDeviceService service;
+        DoorCommandClient client;
+        boolean borrowed;
+        boolean closed;
+
+        Link(@NonNull String address) {
+            this.address = address;
+        }
+
+        void onTimeout() {
+            Log.v("FLEET", "Time out for " + address + " at step " + scheduler.getStep(address));
+            scheduler.onFailed(address);
+        }
+
+        @Override
+        public void onCommunicationReady() {
+            if (!closed) scheduler.onReady(address);
+        }
+
+        @Override
+        public void onDataReceived(byte[] data) {
+            if (!closed) client.onDataReceived(data);
+        }
+
+        @Override
+        public void onConnected() {
+        }
+
+        @Override
+        public void onDisconnected() {
+            if (!closed) scheduler.onFailed(address);
+        }
+
+        @Override
+        public void onConnectionLosing() {
+        }
+
+        @Override
+        public void onError(int error) {
+            // Command failures come back through their own callbacks
+            if (error == ERROR_SEND_FAILED || error == ERROR_READ_FAILED) return;
+            // Some errors are raised inside connectDevice(), leave open() first
+            handler.post(() -> {
+                if (!closed) scheduler.onFailed(address);
+            });
+        }
+    }
+
+    /**
+     * Called on the main thread.
+     */
+    public interface FleetListener {
+        void onDeviceChecked(@NonNull FleetResultModel result, int done, int total);
+        void onFinished(@NonNull List<FleetResultModel> results);
+    }
+}
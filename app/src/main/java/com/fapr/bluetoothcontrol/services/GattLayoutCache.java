@@ -0,0 +1,120 @@
+package com.fapr.bluetoothcontrol.services;
+
+import static com.fapr.bluetoothcontrol.utils.DataUtil.GATT_CACHE;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * ATTRIBUTE LAYOUT OF EACH DEVICE WE TALK TO
+ * <p>
+ * Keeps, per MAC, the service and characteristic used by the app with their
+ * handles, properties and whether the CCCD is present. Each entry is 39 bytes
+ * stored as Base64 in GATT_CACHE. A device whose layout matches its entry only
+ * needs its own service discovered on the next connection.
+ */
+public class GattLayoutCache {
+    private static final int VERSION = 1;
+    private static final int SIZE = 39;
+    private final SharedPreferences prefs;
+
+    public GattLayoutCache(@NonNull Context context) {
+        this.prefs = context.getSharedPreferences(GATT_CACHE, Context.MODE_PRIVATE);
+    }
+
+    // PUBLIC METHODS
+    @Nullable
+    public Layout get(@NonNull String address) {
+        String value = prefs.getString(address, null);
+        return value == null ? null : Layout.decode(value);
+    }
+
+    public void put(@NonNull String address, @NonNull Layout layout) {
+        prefs.edit().putString(address, layout.encode()).apply();
+    }
+
+    public void remove(@NonNull String address) {
+        prefs.edit().remove(address).apply();
+    }
+
+    /**
+     * The service and characteristic the app needs, handles are the instance ids
+     * Android gives to attributes.
+     */
+    public static class Layout {
+        final UUID service;
+        final int serviceHandle;
+        final UUID characteristic;
+        final int characteristicHandle;
+        final int properties;
+        final boolean cccd;
+
+        public Layout(@NonNull UUID service, int serviceHandle, @NonNull UUID characteristic,
+                      int characteristicHandle, int properties, boolean cccd) {
+            this.service = service;
+            this.serviceHandle = serviceHandle;
+            this.characteristic = characteristic;
+            this.characteristicHandle = characteristicHandle;
+            this.properties = properties;
+            this.cccd = cccd;
+        }
+
+        @NonNull
+        public static Layout from(@NonNull BluetoothGattService service, @NonNull BluetoothGattCharacteristic characteristic, boolean cccd) {
+            return new Layout(service.getUuid(), service.getInstanceId(), characteristic.getUuid(),
+                    characteristic.getInstanceId(), characteristic.getProperties(), cccd);
+        }
+
+        public boolean matches(@NonNull Layout other) {
+            return service.equals(other.service) && serviceHandle == other.serviceHandle
+                    && characteristic.equals(other.characteristic) && characteristicHandle == other.characteristicHandle
+                    && properties == other.properties && cccd == other.cccd;
+        }
+
+        public boolean hasCccd() {
+            return cccd;
+        }
+
+        @NonNull
+        String encode() {
+            ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+            buffer.put((byte) VERSION);
+            buffer.putLong(service.getMostSignificantBits()).putLong(service.getLeastSignificantBits());
+            buffer.putShort((short) serviceHandle);
+            buffer.putLong(characteristic.getMostSignificantBits()).putLong(characteristic.getLeastSignificantBits());
+            buffer.putShort((short) characteristicHandle);
+            buffer.put((byte) properties);
+            buffer.put((byte) (cccd ? 1 : 0));
+            return Base64.encodeToString(buffer.array(), Base64.NO_WRAP);
+        }
+
+        @Nullable
+        static Layout decode(@NonNull String value) {
+            byte[] data;
+            try {
+                data = Base64.decode(value, Base64.NO_WRAP);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            if (data.length != SIZE || data[0] != VERSION) return null;
+
+            ByteBuffer buffer = ByteBuffer.wrap(data, 1, SIZE - 1);
+            UUID service = new UUID(buffer.getLong(), buffer.getLong());
+            int serviceHandle = buffer.getShort() & 0xFFFF;
+            UUID characteristic = new UUID(buffer.getLong(), buffer.getLong());
+            int characteristicHandle = buffer.getShort() & 0xFFFF;
+            int properties = buffer.get() & 0xFF;
+            boolean cccd = buffer.get() != 0;
+            return new Layout(service, serviceHandle, characteristic, characteristicHandle, properties, cccd);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.fapr.bluetoothcontrol.services;
+
+import android.Manifest;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.app.ActivityCompat;
+
+import java.util.ArrayDeque;
+
+/**
+ * ONE GATT OPERATION AT A TIME
+ * <p>
+ * Android keeps a single outstanding GATT request per connection and silently
+ * drops the next one until the previous callback arrives. Every write, read and
+ * MTU request goes through this queue, which starts an operation only after the
+ * last one completed, failed or timed out.
+ * <p>
+ * A request the stack refused is started again after RETRY_DELAY, up to its retry
+ * count. One that timed out fails instead: the stack may have sent it and only the
+ * callback is late, a door command written twice would run twice, so the caller decides.
+ * <p>
+ * Every request the stack accepts is tagged with an attempt number, and a callback
+ * carries the number issued when it came in. The stack refuses a new request until
+ * the previous one was answered, so a late answer of an attempt that timed out still
+ * carries the old number and is dropped instead of completing the retry, or the
+ * next operation of the same type.
+ * <p>
+ * All state lives on the handler thread, GATT callbacks must go through complete().
+ */
+public class GattOperationQueue {
+    public static final int WRITE_CHARACTERISTIC = 0;
+    public static final int WRITE_DESCRIPTOR = 1;
+    public static final int READ_CHARACTERISTIC = 2;
+    public static final int REQUEST_MTU = 3;
+    public static final int STATUS_TIMEOUT = -1;
+    public static final int STATUS_NOT_STARTED = -2;
+    public static final int STATUS_CANCELLED = -3;
+    public static final long OP_TIMEOUT = 3000;
+    public static final int MAX_RETRIES = 2;
+    public static final long RETRY_DELAY = 100;
+
+    private final Context context;
+    private final Handler handler;
+    private final ArrayDeque<GattOperation> operations = new ArrayDeque<>();
+    private BluetoothGatt gatt;
+    private GattOperation current;
+    private long attempts;
+    private volatile long issued;
+    private boolean retryPending;
+    private long stale;
+    private int maxDepth;
+    private long completed;
+    private long failed;
+    private long lastLatency = -1;
+    private long totalLatency;
+    private long maxLatency;
+
+    private final Runnable timeout = new Runnable() {
+        @Override
+        public void run() {
+            if (current == null) return;
+            Log.v("GATT", "Operation " + current.type + " timed out after " + current.timeout + " ms");
+            finish(current, STATUS_TIMEOUT, null, 0);
+        }
+    };
+
+    private final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            retryPending = false;
+            next();
+        }
+    };
+
+    public GattOperationQueue(@NonNull Context context, @NonNull Handler handler) {
+        this.context = context;
+        this.handler = handler;
+    }
+
+    // PUBLIC METHODS
+    /** Connection the operations run on, null cancels everything pending. */
+    public void setGatt(@Nullable BluetoothGatt gatt) {
+        handler.post(() -> {
+            if (gatt == null) cancelAll();
+            this.gatt = gatt;
+        });
+    }
+
+    @NonNull
+    public GattOperation writeCharacteristic(@NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] value,
+                                             int writeType, @Nullable OperationCallback callback) {
+        GattOperation operation = new GattOperation(WRITE_CHARACTERISTIC, callback);
+        operation.characteristic = characteristic;
+        operation.value = value;
+        operation.writeType = writeType;
+        enqueue(operation);
+        return operation;
+    }
+
+    public void writeDescriptor(@NonNull BluetoothGattDescriptor descriptor, @NonNull byte[] value,
+                                @Nullable OperationCallback callback) {
+        GattOperation operation = new GattOperation(WRITE_DESCRIPTOR, callback);
+        operation.descriptor = descriptor;
+        operation.value = value;
+        enqueue(operation);
+    }
+
+    public void readCharacteristic(@NonNull BluetoothGattCharacteristic characteristic, @Nullable OperationCallback callback) {
+        GattOperation operation = new GattOperation(READ_CHARACTERISTIC, callback);
+        operation.characteristic = characteristic;
+        enqueue(operation);
+    }
+
+    public void requestMtu(int mtu, @Nullable OperationCallback callback) {
+        GattOperation operation = new GattOperation(REQUEST_MTU, callback);
+        operation.mtu = mtu;
+        enqueue(operation);
+    }
+
+    public void enqueue(@NonNull GattOperation operation) {
+        handler.post(() -> {
+            operation.enqueued = SystemClock.elapsedRealtime();
+            operations.add(operation);
+            maxDepth = Math.max(maxDepth, getDepth());
+            next();
+        });
+    }
+
+    /**
+     * Report the GATT callback of the running operation, from any thread.
+     * For MTU requests value is null and mtu holds the negotiated size.
+     */
+    public void complete(int type, int status, @Nullable byte[] value, int mtu) {
+        // Read on the callback thread, before a retry can take a new number
+        long attempt = issued;
+        handler.post(() -> {
+            if (current == null || current.type != type) return;
+            if (current.attempt != attempt) {
+                stale++;
+                Log.v("GATT", "Late callback of operation " + type + " dropped, status " + status);
+                return;
+            }
+            handler.removeCallbacks(timeout);
+            finish(current, status, value, mtu);
+        });
+    }
+
+    /** Operations waiting plus the one running. */
+    public int getDepth() {
+        return operations.size() + (current != null ? 1 : 0);
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /** Milliseconds from start to callback of the last successful operation, -1 if none. */
+    public long getLastLatency() {
+        return lastLatency;
+    }
+
+    public long getAverageLatency() {
+        return completed > 0 ? totalLatency / completed : -1;
+    }
+
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+
+    public long getCompleted() {
+        return completed;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    /** Callbacks dropped because their attempt had already timed out. */
+    public long getStale() {
+        return stale;
+    }
+
+    // PRIVATE METHODS
+    private void next() {
+        if (current != null || gatt == null || retryPending) return;
+
+        current = operations.poll();
+        if (current == null) return;
+
+        current.started = SystemClock.elapsedRealtime();
+        if (current.cancelled) {
+            finish(current, STATUS_CANCELLED, null, 0);
+            return;
+        }
+        if (!execute(current)) {
+            retryOrFail();
+            return;
+        }
+        current.attempt = ++attempts;
+        issued = current.attempt;
+        handler.postDelayed(timeout, current.timeout);
+    }
+
+    private boolean execute(@NonNull GattOperation operation) {
+        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                return false;
+            }
+        }
+
+        switch (operation.type) {
+            case WRITE_CHARACTERISTIC: {
+                // The value is set right before the write, no other operation can touch it meanwhile
+                operation.characteristic.setWriteType(operation.writeType);
+                operation.characteristic.setValue(operation.value);
+                return gatt.writeCharacteristic(operation.characteristic);
+            }
+
+            case WRITE_DESCRIPTOR: {
+                operation.descriptor.setValue(operation.value);
+                return gatt.writeDescriptor(operation.descriptor);
+            }
+
+            case READ_CHARACTERISTIC: {
+                return gatt.readCharacteristic(operation.characteristic);
+            }
+
+            case REQUEST_MTU: {
+                return gatt.requestMtu(operation.mtu);
+            }
+
+            default:
+                return false;
+        }
+    }
+
+    /** The stack refused the current request, nothing went on air so it is safe to start again. */
+    private void retryOrFail() {
+        GattOperation operation = current;
+        if (operation.retries > 0) {
+            operation.retries--;
+            current = null;
+            // Retry in place, order matters for protocol frames
+            operations.addFirst(operation);
+            // A refused request means the stack is busy, give it a moment
+            retryPending = true;
+            handler.postDelayed(retry, RETRY_DELAY);
+            return;
+        }
+        finish(operation, STATUS_NOT_STARTED, null, 0);
+    }
+
+    private void finish(@NonNull GattOperation operation, int status, @Nullable byte[] value, int mtu) {
+        current = null;
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            lastLatency = SystemClock.elapsedRealtime() - operation.started;
+            totalLatency += lastLatency;
+            maxLatency = Math.max(maxLatency, lastLatency);
+            completed++;
+        } else if (status != STATUS_CANCELLED) {
+            failed++;
+        }
+
+        if (operation.callback != null) operation.callback.onComplete(status, value, mtu);
+        next();
+    }
+
+    private void cancelAll() {
+        handler.removeCallbacks(timeout);
+        handler.removeCallbacks(retry);
+        retryPending = false;
+        if (current != null) operations.add(current);
+        current = null;
+
+        GattOperation operation;
+        while ((operation = operations.poll()) != null) {
+            if (operation.callback != null) operation.callback.onComplete(STATUS_CANCELLED, null, 0);
+        }
+    }
+
+    /**
+     * One queued request. Fields are filled by the queue helpers, timeout and
+     * retries can be changed before enqueue().
+     */
+    public static class GattOperation {
+        final int type;
+        final OperationCallback callback;
+        BluetoothGattCharacteristic characteristic;
+        BluetoothGattDescriptor descriptor;
+        byte[] value;
+        int writeType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+        int mtu;
+        long timeout = OP_TIMEOUT;
+        int retries = MAX_RETRIES;
+        long enqueued;
+        long started;
+        long attempt;
+        volatile boolean cancelled;
+
+        public GattOperation(int type, @Nullable OperationCallback callback) {
+            this.type = type;
+            this.callback = callback;
+        }
+
+        public GattOperation setTimeout(long timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
+        public GattOperation setRetries(int retries) {
+            this.retries = retries;
+            return this;
+        }
+
+        /** Skip the operation if it has not started yet, its callback gets STATUS_CANCELLED. */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /** Milliseconds the operation waited in the queue before it started. */
+        public long getWaitTime() {
+            return started - enqueued;
+        }
+    }
+
+    /**
+     * Called on the handler thread. Status is a BluetoothGatt status or one of STATUS_*.
+     */
+    public interface OperationCallback {
+        void onComplete(int status, @Nullable byte[] value, int mtu);
+    }
+}
@@ -1,6 +1,8 @@
 package com.fapr.bluetoothcontrol.services;
 
 import static com.fapr.bluetoothcontrol.utils.BluetoothUtil.*;
+import static com.fapr.bluetoothcontrol.services.LatencyRecorder.*;
+import static com.fapr.bluetoothcontrol.utils.DataUtil.RECONNECT_DATA;
 
 import android.Manifest;
 import android.bluetooth.BluetoothAdapter;
@@ -11,39 +13,130 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanResult;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.core.app.ActivityCompat;
 
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
 
 /**
  * MANAGE THE CONNECTION AND COMMUNICATION WITH LE DEVICE
  * <p>
+ * Writes, reads and MTU requests run through a GattOperationQueue, so a new
+ * request never overwrites one the stack has not confirmed yet.
+ * <p>
+ * The ATT MTU is negotiated before the link is reported ready, and payloads larger
+ * than one packet are split into consecutive writes. sendStream() uses write without
+ * response for bulk transfers, paced by the write callbacks of the stack.
+ * <p>
+ * Commands raise the connection priority to HIGH (7.5-15 ms interval) and the link
+ * falls back to balanced, then low power, once it is idle. The 2M PHY is requested
+ * when the phone supports it, the controller keeps 1M if the device does not.
+ * The time from each command to its answer is kept per priority so
+ * both can be compared.
+ * <p>
+ * The layout of the device is kept in a GattLayoutCache. When an entry exists only
+ * our service is discovered, and a layout that no longer matches clears the stack
+ * cache and falls back to a full discovery.
+ * <p>
+ * Notifications are copied on the binder thread into a NotificationPump, which
+ * drains them on its own thread and only publishes frames that changed or may
+ * answer a command, one main thread post per batch.
+ * <p>
+ * Connect, service discovery, CCCD enable, first notification and command round
+ * trip times go to the LatencyRecorder. The round trip is reported by the command
+ * client once an answer matched its request.
+ * <p>
  * By Frankil Aldair Pérez Rosales
  */
 public class LEDeviceService {
     // PROPERTIES
+    private static final UUID CCCD_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    public static final int DEFAULT_MTU = 23;
+    // Fits a full LE data packet with data length extension, 251 bytes minus the L2CAP header
+    public static final int PREFERRED_MTU = 247;
+    private static final int ATT_HEADER = 3;
+    private static final long IDLE_BALANCED = 5000;
+    private static final long IDLE_LOW_POWER = 30000;
+    // A fast reconnect that found nothing by then is reported as a disconnection
+    private static final long RECONNECT_TIMEOUT = 3 * LE_SCAN_PERIOD;
+    private static final String[] PRIORITY_NAMES = {"balanced", "high", "low power"};
     private final Context context;
     private final BluetoothAdapter bluetoothAdapter;
     private BluetoothDevice bluetoothDevice;
-    private BluetoothGatt bluetoothGatt;
+    private volatile BluetoothGatt bluetoothGatt;
     private BluetoothGattCharacteristic characteristic;
-    private final LEDeviceEventListener listener;
+    private volatile LEDeviceEventListener listener;
     private final String address;
     private final UUID serviceUUID;
     private final UUID characteristicUUID;
     private final Handler handler;
+    private final GattOperationQueue queue;
+    private final NotificationPump pump;
+    private BluetoothGatt directGatt;
+    private volatile long reconnectStart;
+    private long reconnectLatency = -1;
+    private volatile int mtu = DEFAULT_MTU;
+    private volatile boolean ready;
+    private final GattLayoutCache layoutCache;
+    private GattLayoutCache.Layout cachedLayout;
+    // Only our service was discovered, the connect to ready time counts as cached
+    private boolean shortcutUsed;
+    private boolean rediscovered;
+    private volatile long connectStart;
+    private volatile long discoveryStart;
+    private volatile long notificationStart;
+    private final LatencyRecorder latency = LatencyRecorder.getInstance();
+    private final long[] readyTotal = new long[2];
+    private final int[] readyCount = new int[2];
+    private float throughput = -1;
+    private int priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    private final long[] roundTripTotal = new long[PRIORITY_NAMES.length];
+    private final int[] roundTripCount = new int[PRIORITY_NAMES.length];
 
     // EVENTS
+    private final ScanCallback reconnectCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            super.onScanResult(callbackType, result);
+            if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                    return;
+                }
+            }
+
+            stopReconnectScan();
+            synchronized (LEDeviceService.this) {
+                if (reconnectStart == 0 || directGatt != null) return;
+                // The device is advertising, a direct connection is faster than waiting for autoConnect
+                directGatt = result.getDevice().connectGatt(context, false, callback);
+            }
+        }
+    };
+
+    private final Runnable reconnectScanTimeout = this::stopReconnectScan;
+    private final Runnable reconnectTimeout = this::onReconnectTimeout;
+    private final Runnable idleBalanced = () -> setPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+    private final Runnable idleLowPower = () -> setPriority(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER);
+
     private final BluetoothGattCallback callback = new BluetoothGattCallback() {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
@@ -55,10 +148,22 @@ public class LEDeviceService {
                         return;
                     }
                 }
-                bluetoothGatt.discoverServices();
+                // Fast reconnect: the first link up wins, the other attempt is dropped
+                if (reconnectStart > 0 && !finishReconnect(gatt)) return;
+                if (connectStart > 0) record(METRIC_CONNECT, connectStart);
+                queue.setGatt(gatt);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bluetoothAdapter.isLe2MPhySupported()) {
+                    gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+                }
+                startDiscovery(gatt);
                 handler.post(listener::onConnected);
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                handler.post(listener::onDisconnected);
+                // While racing, a failed direct attempt leaves autoConnect running and scans again
+                if (reconnectStart > 0) {
+                    if (dropDirectAttempt(gatt)) startReconnectScan();
+                    return;
+                }
+                reportDisconnected();
             }
         }
 
@@ -66,39 +171,126 @@ public class LEDeviceService {
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             super.onServicesDiscovered(gatt, status);
 
+            if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                    handler.post(()->listener.onError(ERROR_BLUETOOTH_PERMISSION));
+                    return;
+                }
+            }
+
             BluetoothGattService service = gatt.getService(serviceUUID);
+            BluetoothGattCharacteristic found = service != null ? service.getCharacteristic(characteristicUUID) : null;
+            GattLayoutCache.Layout layout = found != null
+                    ? GattLayoutCache.Layout.from(service, found, found.getDescriptor(CCCD_UUID) != null) : null;
+
+            if (cachedLayout != null && (layout == null || !layout.matches(cachedLayout)) && !rediscovered) {
+                // New firmware or a stale stack table, forget both and discover everything
+                Log.v("GATT", "Layout of " + address + " changed, discovering again");
+                rediscovered = true;
+                cachedLayout = null;
+                shortcutUsed = false;
+                layoutCache.remove(address);
+                refreshStackCache(gatt);
+                gatt.discoverServices();
+                return;
+            }
+
             if (service == null) {
                 handler.post(()->listener.onError(ERROR_NOT_SERVICE));
                 return;
             }
 
-            characteristic = service.getCharacteristic(characteristicUUID);
+            characteristic = found;
             if (characteristic == null) {
                 handler.post(()->listener.onError(ERROR_NOT_CHARACTERISTIC));
                 return;
             }
-
-            if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-                    handler.post(()->listener.onError(ERROR_BLUETOOTH_PERMISSION));
-                    return;
-                }
-            }
+            if (cachedLayout == null) layoutCache.put(address, layout);
+            record(METRIC_DISCOVERY, discoveryStart);
 
             bluetoothGatt.setCharacteristicNotification(characteristic, true);
-            for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
-                BluetoothGattDescriptor gattDescriptor = characteristic.getDescriptor(descriptor.getUuid());
-                gattDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                bluetoothGatt.writeDescriptor(descriptor);
+            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CCCD_UUID);
+            if (descriptor != null) {
+                long cccdStart = SystemClock.elapsedRealtime();
+                queue.writeDescriptor(descriptor, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, (result, value, size) -> {
+                    if (result == BluetoothGatt.GATT_SUCCESS) record(METRIC_CCCD, cccdStart);
+                    else if (result != GattOperationQueue.STATUS_CANCELLED) Log.v("GATT", "Notifications not enabled: " + result);
+                });
             }
 
-            handler.post(listener::onCommunicationReady);
+            // Ready once notifications are on and the MTU is known, earlier commands could lose their answer
+            queue.requestMtu(PREFERRED_MTU, (result, value, size) -> {
+                // The link dropped during setup, only a failed MTU request still counts as ready
+                if (result == GattOperationQueue.STATUS_CANCELLED || gatt != bluetoothGatt) return;
+
+                Log.v("GATT", "MTU " + mtu + (result == BluetoothGatt.GATT_SUCCESS ? "" : ", request failed: " + result));
+                ready = true;
+                notificationStart = SystemClock.elapsedRealtime();
+                recordReady();
+                listener.onCommunicationReady();
+            });
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            super.onCharacteristicWrite(gatt, characteristic, status);
+            queue.complete(GattOperationQueue.WRITE_CHARACTERISTIC, status, null, 0);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            super.onDescriptorWrite(gatt, descriptor, status);
+            queue.complete(GattOperationQueue.WRITE_DESCRIPTOR, status, null, 0);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            super.onCharacteristicRead(gatt, characteristic, status);
+            queue.complete(GattOperationQueue.READ_CHARACTERISTIC, status, characteristic.getValue(), 0);
+        }
+
+        @Override
+        public void onCharacteristicRead(@NonNull BluetoothGatt gatt, @NonNull BluetoothGattCharacteristic characteristic,
+                                         @NonNull byte[] value, int status) {
+            // Android 13 and up, the default implementation would call the deprecated one
+            queue.complete(GattOperationQueue.READ_CHARACTERISTIC, status, value, 0);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            super.onMtuChanged(gatt, mtu, status);
+            // Android 14 negotiates on its own, so this can arrive without a request
+            if (status == BluetoothGatt.GATT_SUCCESS) LEDeviceService.this.mtu = mtu;
+            queue.complete(GattOperationQueue.REQUEST_MTU, status, null, mtu);
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            super.onPhyUpdate(gatt, txPhy, rxPhy, status);
+            Log.v("GATT", "PHY tx " + txPhy + " rx " + rxPhy + ", status " + status);
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
             super.onCharacteristicChanged(gatt, characteristic);
-            handler.post(() -> listener.onDataReceived(characteristic.getValue()));
+            // The value of the characteristic is overwritten by the next packet, copy it now
+            if (notificationStart > 0) recordFirstNotification();
+            pump.offer(characteristic.getValue());
+        }
+
+        @Override
+        public void onCharacteristicChanged(@NonNull BluetoothGatt gatt, @NonNull BluetoothGattCharacteristic characteristic,
+                                            @NonNull byte[] value) {
+            // Android 13 and up, the default implementation would call the deprecated one
+            if (notificationStart > 0) recordFirstNotification();
+            pump.offer(value);
+        }
+    };
+
+    private final NotificationPump.FrameListener frameListener = new NotificationPump.FrameListener() {
+        @Override
+        public void onFrames(@NonNull List<byte[]> frames) {
+            for (byte[] frame : frames) listener.onDataReceived(frame);
         }
     };
 
@@ -106,6 +298,9 @@ public class LEDeviceService {
         @Override
         public void onReceive(Context context, @NonNull Intent intent) {
             String action = intent.getAction();
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            // ACL events come for every device, only ours may lose the link
+            if (device != null && !device.getAddress().equals(address)) return;
             final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
             final int con_state = intent.getIntExtra(BluetoothAdapter.EXTRA_CONNECTION_STATE, BluetoothAdapter.ERROR);
 
@@ -130,6 +325,9 @@ public class LEDeviceService {
         this.listener = listener;
         this.bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         this.handler = new Handler(Looper.getMainLooper());
+        this.queue = new GattOperationQueue(context, handler);
+        this.layoutCache = new GattLayoutCache(context);
+        this.pump = new NotificationPump(address, handler, frameListener);
         addReceiver();
     }
 
@@ -165,7 +363,249 @@ public class LEDeviceService {
         return false;
     }
 
+    private synchronized boolean finishReconnect(@NonNull BluetoothGatt winner) {
+        if (reconnectStart == 0) return winner == bluetoothGatt;
+        if (winner != bluetoothGatt && winner != directGatt) return false;
+
+        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                return false;
+            }
+        }
+
+        BluetoothGatt loser = winner == directGatt ? bluetoothGatt : directGatt;
+        if (loser != null) {
+            loser.disconnect();
+            loser.close();
+        }
+
+        reconnectLatency = SystemClock.elapsedRealtime() - reconnectStart;
+        String path = winner == directGatt ? "scan" : "autoConnect";
+        reconnectStart = 0;
+        bluetoothGatt = winner;
+        directGatt = null;
+        handler.removeCallbacks(reconnectTimeout);
+        stopReconnectScan();
+
+        SharedPreferences prefs = context.getSharedPreferences(RECONNECT_DATA, Context.MODE_PRIVATE);
+        prefs.edit().putLong(address, reconnectLatency).apply();
+        Log.v("RECONNECT", address + " via " + path + " in " + reconnectLatency + " ms");
+        return true;
+    }
+
+    /**
+     * Close the direct attempt of a fast reconnect that failed, so a new scan result can
+     * start another one. Returns true when the race is still running.
+     */
+    private synchronized boolean dropDirectAttempt(@NonNull BluetoothGatt gatt) {
+        if (directGatt == null || gatt != directGatt) return false;
+
+        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                return false;
+            }
+        }
+
+        directGatt.close();
+        directGatt = null;
+        Log.v("RECONNECT", "Direct attempt to " + address + " failed, scanning again");
+        return reconnectStart > 0;
+    }
+
+    /** Neither path brought the link up in RECONNECT_TIMEOUT, autoConnect keeps waiting on its own. */
+    private void onReconnectTimeout() {
+        BluetoothGatt direct;
+        synchronized (this) {
+            if (reconnectStart == 0) return;
+            reconnectStart = 0;
+            connectStart = 0;
+            direct = directGatt;
+            directGatt = null;
+        }
+
+        stopReconnectScan();
+        Log.v("RECONNECT", address + " not found in " + RECONNECT_TIMEOUT + " ms");
+        reportDisconnected();
+        if (direct == null) return;
+
+        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                return;
+            }
+        }
+        direct.close();
+    }
+
+    private void reportDisconnected() {
+        queue.setGatt(null);
+        mtu = DEFAULT_MTU;
+        ready = false;
+        notificationStart = 0;
+        handler.post(() -> {
+            resetPriority();
+            listener.onDisconnected();
+        });
+    }
+
+    private void startReconnectScan() {
+        if (bluetoothAdapter == null) return;
+
+        BluetoothLeScanner scanner = bluetoothAdapter.getBluetoothLeScanner();
+        if (scanner == null) return;
+
+        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                return;
+            }
+        }
+
+        ScanProfile profile = ScanProfile.reconnect(address);
+        scanner.startScan(profile.buildFilters(null), profile.buildSettings(bluetoothAdapter), reconnectCallback);
+        handler.removeCallbacks(reconnectScanTimeout);
+        handler.postDelayed(reconnectScanTimeout, LE_SCAN_PERIOD);
+    }
+
+    private void stopReconnectScan() {
+        handler.removeCallbacks(reconnectScanTimeout);
+        if (bluetoothAdapter == null) return;
+
+        BluetoothLeScanner scanner = bluetoothAdapter.getBluetoothLeScanner();
+        if (scanner == null) return;
+
+        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                return;
+            }
+        }
+        scanner.stopScan(reconnectCallback);
+    }
+
+    /**
+     * Discover only our service when the layout is cached, everything otherwise.
+     */
+    private void startDiscovery(@NonNull BluetoothGatt gatt) {
+        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                return;
+            }
+        }
+
+        rediscovered = false;
+        discoveryStart = SystemClock.elapsedRealtime();
+        cachedLayout = layoutCache.get(address);
+        shortcutUsed = cachedLayout != null && discoverService(gatt);
+        if (shortcutUsed) return;
+        gatt.discoverServices();
+    }
+
+    /**
+     * BluetoothGatt.discoverServiceByUuid() is hidden, it only walks the attributes of one
+     * service. Returns false when the platform does not have it, so the caller falls back.
+     */
+    private boolean discoverService(@NonNull BluetoothGatt gatt) {
+        try {
+            Method method = gatt.getClass().getMethod("discoverServiceByUuid", UUID.class);
+            Object started = method.invoke(gatt, serviceUUID);
+            return Boolean.TRUE.equals(started);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /** BluetoothGatt.refresh() is hidden, it drops the attribute table the stack cached. */
+    private void refreshStackCache(@NonNull BluetoothGatt gatt) {
+        try {
+            Method method = gatt.getClass().getMethod("refresh");
+            method.invoke(gatt);
+        } catch (Exception e) {
+            Log.v("GATT", "Stack cache not refreshed", e);
+        }
+    }
+
+    private void record(int metric, long start) {
+        latency.record(TRANSPORT_LE, address, metric, SystemClock.elapsedRealtime() - start);
+    }
+
+    private void recordFirstNotification() {
+        long start = notificationStart;
+        notificationStart = 0;
+        if (start > 0) record(METRIC_FIRST_NOTIFICATION, start);
+    }
+
+    private void recordReady() {
+        if (connectStart == 0) return;
+        long elapsed = SystemClock.elapsedRealtime() - connectStart;
+        int cached = shortcutUsed ? 1 : 0;
+        readyTotal[cached] += elapsed;
+        readyCount[cached]++;
+        connectStart = 0;
+        Log.v("GATT", "Ready in " + elapsed + " ms, " + (cached == 1 ? "cached layout" : "full discovery"));
+    }
+
+    /**
+     * A command is going out: raise the priority now and schedule the fall back.
+     */
+    private void markBusy() {
+        setPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        handler.removeCallbacks(idleBalanced);
+        handler.removeCallbacks(idleLowPower);
+        handler.postDelayed(idleBalanced, IDLE_BALANCED);
+        handler.postDelayed(idleLowPower, IDLE_LOW_POWER);
+    }
+
+    private void setPriority(int priority) {
+        if (this.priority == priority || bluetoothGatt == null) return;
+
+        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                return;
+            }
+        }
+
+        if (bluetoothGatt.requestConnectionPriority(priority)) this.priority = priority;
+    }
+
+    private void resetPriority() {
+        handler.removeCallbacks(idleBalanced);
+        handler.removeCallbacks(idleLowPower);
+        for (int i = 0; i < PRIORITY_NAMES.length; i++) {
+            if (roundTripCount[i] > 0) Log.v("GATT", "Round trip on " + PRIORITY_NAMES[i] + ": " + getRoundTrip(i) + " ms");
+        }
+        priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    }
+
     // PUBLIC METHODS
+    /**
+     * Reconnect to a known device: a background autoConnect attempt and an address
+     * filtered scan run together, and whichever brings the link up first is kept.
+     */
+    public void connectDeviceFast() {
+        bluetoothDevice = bluetoothAdapter.getRemoteDevice(address);
+        if (notDeviceReady()) return;
+
+        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                listener.onError(ERROR_BLUETOOTH_PERMISSION);
+                return;
+            }
+        }
+
+        if (bluetoothAdapter.isDiscovering()) bluetoothAdapter.cancelDiscovery();
+        reconnectStart = SystemClock.elapsedRealtime();
+        connectStart = reconnectStart;
+        directGatt = null;
+        if (bluetoothGatt != null) bluetoothGatt.close();
+        bluetoothGatt = bluetoothDevice.connectGatt(context, true, callback);
+        handler.removeCallbacks(reconnectTimeout);
+        handler.postDelayed(reconnectTimeout, RECONNECT_TIMEOUT);
+        startReconnectScan();
+    }
+
+    /** Milliseconds the last fast reconnect took, -1 if none finished. */
+    public long getReconnectLatency() {
+        return reconnectLatency;
+    }
+
     public void connectDevice() {
         bluetoothDevice = bluetoothAdapter.getRemoteDevice(address);
         if (notDeviceReady()) return;
@@ -178,6 +618,9 @@ public class LEDeviceService {
         }
 
         if (bluetoothAdapter.isDiscovering()) bluetoothAdapter.cancelDiscovery();
+        // Shared links reconnect on the same service, release the client of the previous link
+        if (bluetoothGatt != null) bluetoothGatt.close();
+        connectStart = SystemClock.elapsedRealtime();
         bluetoothGatt = bluetoothDevice.connectGatt(context, false, callback);
     }
 
@@ -193,11 +636,132 @@ public class LEDeviceService {
             }
         }
 
+        stopReconnectScan();
+        handler.removeCallbacks(reconnectTimeout);
+        reconnectStart = 0;
+        if (directGatt != null) {
+            directGatt.disconnect();
+            directGatt.close();
+            directGatt = null;
+        }
+
+        Log.v("GATT", "Operations: " + queue.getCompleted() + " done, " + queue.getFailed() + " failed, " + queue.getStale() + " late, latency avg "
+                + queue.getAverageLatency() + " ms max " + queue.getMaxLatency() + " ms, max depth " + queue.getMaxDepth());
+        queue.setGatt(null);
+        resetPriority();
+        ready = false;
+        notificationStart = 0;
         bluetoothGatt.disconnect();
         bluetoothDevice = null;
     }
 
+    /**
+     * Disconnect, release the GATT client and stop listening to broadcasts.
+     * The service can not be used afterwards.
+     */
+    public void close() {
+        disconnectDevice();
+        handler.removeCallbacks(reconnectScanTimeout);
+        handler.removeCallbacks(reconnectTimeout);
+        context.unregisterReceiver(receiver);
+        pump.stop();
+        if (bluetoothGatt == null) return;
+
+        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                return;
+            }
+        }
+        bluetoothGatt.close();
+        bluetoothGatt = null;
+    }
+
+    /** True when the link is up, discovered and ready for commands. */
+    public boolean isReady() {
+        return ready && bluetoothGatt != null && characteristic != null;
+    }
+
+    /** Screens attach to a shared link by swapping the listener, see ConnectionManager. */
+    public void setListener(@NonNull LEDeviceEventListener listener) {
+        this.listener = listener;
+    }
+
+    @NonNull
+    public LEDeviceEventListener getListener() {
+        return listener;
+    }
+
     public void sendData(byte[] data) {
+        sendData(data, null);
+    }
+
+    /**
+     * Queue a write, callback runs on the main thread once the device acknowledged it,
+     * or once it failed. A write that timed out is not sent again, the caller decides.
+     * Failures are also reported with ERROR_SEND_FAILED.
+     * Payloads larger than the MTU are split, the callback fires after the last part.
+     */
+    public void sendData(byte[] data, @Nullable GattOperationQueue.OperationCallback callback) {
+        send(data, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, callback);
+    }
+
+    /**
+     * Send a bulk payload with write without response when the characteristic allows it.
+     * The stack confirms each packet once it is buffered, which paces the next one.
+     */
+    public void sendStream(byte[] data, @Nullable GattOperationQueue.OperationCallback callback) {
+        send(data, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, callback);
+    }
+
+    /** Negotiated ATT MTU, DEFAULT_MTU until the device answers. */
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * Average milliseconds from a command to its answer while the link
+     * ran at the given BluetoothGatt.CONNECTION_PRIORITY_*, -1 if none was measured.
+     */
+    public long getRoundTrip(int priority) {
+        if (roundTripCount[priority] == 0) return -1;
+        return roundTripTotal[priority] / roundTripCount[priority];
+    }
+
+    /**
+     * Connection priority the link runs at before the next command raises it,
+     * BluetoothGatt.CONNECTION_PRIORITY_*.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * A command got the answer it was waiting for, called by the command client that
+     * matched it. Unsolicited notifications never count.
+     *
+     * @param priority getPriority() when the command was sent, the interval changes a few
+     *                 events after the request so the first command of a burst runs on the old one
+     */
+    public void recordRoundTrip(int priority, long elapsed) {
+        roundTripTotal[priority] += elapsed;
+        roundTripCount[priority]++;
+        latency.record(TRANSPORT_LE, address, METRIC_COMMAND, elapsed);
+    }
+
+    /**
+     * Average milliseconds from connect to ready, with the cached layout (true) or a full discovery.
+     */
+    public long getConnectToReady(boolean cached) {
+        int index = cached ? 1 : 0;
+        return readyCount[index] > 0 ? readyTotal[index] / readyCount[index] : -1;
+    }
+
+    /** Bytes per second of the last multi packet transfer, -1 if none finished. */
+    public float getThroughput() {
+        return throughput;
+    }
+
+    private void send(byte[] data, int writeType, @Nullable GattOperationQueue.OperationCallback callback) {
         if (characteristic == null) {
             listener.onError(ERROR_NOT_CHARACTERISTIC);
             return;
@@ -212,8 +776,69 @@ public class LEDeviceService {
             }
         }
 
-        characteristic.setValue(data);
-        bluetoothGatt.writeCharacteristic(characteristic);
+        markBusy();
+        pump.expectAnswer();
+        if (writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) == 0) {
+            writeType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+        }
+
+        int packetSize = mtu - ATT_HEADER;
+        int count = Math.max(1, (data.length + packetSize - 1) / packetSize);
+        long start = SystemClock.elapsedRealtime();
+        // Every part is queued now so nothing else lands between them, a failed part cancels the rest
+        GattOperationQueue.GattOperation[] parts = new GattOperationQueue.GattOperation[count];
+        boolean[] failed = new boolean[1];
+        for (int i = 0; i < count; i++) {
+            byte[] part = count == 1 ? data : Arrays.copyOfRange(data, i * packetSize, Math.min(data.length, (i + 1) * packetSize));
+            boolean last = i == count - 1;
+            int next = i + 1;
+            parts[i] = queue.writeCharacteristic(characteristic, part, writeType, (status, value, size) -> {
+                if (failed[0]) return;
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    failed[0] = true;
+                    for (int j = next; j < parts.length; j++) parts[j].cancel();
+                    if (status != GattOperationQueue.STATUS_CANCELLED) listener.onError(ERROR_SEND_FAILED);
+                } else if (!last) {
+                    return;
+                } else if (count > 1) {
+                    long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+                    throughput = data.length * 1000f / elapsed;
+                    Log.v("GATT", data.length + " bytes in " + count + " packets, " + Math.round(throughput) + " B/s");
+                }
+                if (callback != null) callback.onComplete(status, value, size);
+            });
+        }
+    }
+
+    /**
+     * Queue a read of the characteristic, the value arrives through the callback.
+     */
+    public void readData(@NonNull GattOperationQueue.OperationCallback callback) {
+        if (characteristic == null) {
+            listener.onError(ERROR_NOT_CHARACTERISTIC);
+            return;
+        }
+
+        if(notDeviceReady()) return;
+        queue.readCharacteristic(characteristic, (status, value, mtu) -> {
+            if (status != BluetoothGatt.GATT_SUCCESS && status != GattOperationQueue.STATUS_CANCELLED) {
+                listener.onError(ERROR_READ_FAILED);
+            }
+            callback.onComplete(status, value, mtu);
+        });
+    }
+
+    /** Published, unchanged and dropped notifications of this device. */
+    @NonNull
+    public NotificationPump getNotificationPump() {
+        return pump;
+    }
+
+    /** Depth and latency of the operations sent to this device. */
+    @NonNull
+    public GattOperationQueue getOperationQueue() {
+        return queue;
     }
 
     public interface LEDeviceEventListener {
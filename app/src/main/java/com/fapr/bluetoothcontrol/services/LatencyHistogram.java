@@ -0,0 +1,85 @@
+package com.fapr.bluetoothcontrol.services;
+
+/**
+ * LATENCIES IN FIXED MEMORY
+ * <p>
+ * Counts samples in geometric buckets from 1 ms to MAX_VALUE, each bucket about 20%
+ * wider than the previous one, so a percentile is off by at most that much no
+ * matter how many samples were taken. Larger samples fall in the last bucket.
+ * <p>
+ * Not thread safe, LatencyRecorder guards it.
+ */
+public class LatencyHistogram {
+    public static final long MAX_VALUE = 120000;
+    private static final long[] BOUNDS = buildBounds();
+    private final int[] counts = new int[BOUNDS.length];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    private static long[] buildBounds() {
+        int size = 0;
+        long[] bounds = new long[128];
+        long bound = 1;
+        while (bound < MAX_VALUE) {
+            bounds[size++] = bound;
+            bound = Math.max(bound + 1, Math.round(bound * 1.2));
+        }
+        bounds[size++] = MAX_VALUE;
+
+        long[] result = new long[size];
+        System.arraycopy(bounds, 0, result, 0, size);
+        return result;
+    }
+
+    // PUBLIC METHODS
+    public void record(long millis) {
+        long value = Math.max(0, millis);
+        int low = 0;
+        int high = BOUNDS.length - 1;
+        // First bucket whose upper bound holds the value
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (BOUNDS[middle] < value) low = middle + 1;
+            else high = middle;
+        }
+        counts[low]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Upper bound of the bucket holding the given percentile (0-100), never above the
+     * largest sample. -1 when empty.
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) return -1;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(BOUNDS[i], max);
+        }
+        return max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getAverage() {
+        return count == 0 ? -1 : sum / count;
+    }
+
+    public long getMin() {
+        return count == 0 ? -1 : min;
+    }
+
+    public long getMax() {
+        return count == 0 ? -1 : max;
+    }
+}
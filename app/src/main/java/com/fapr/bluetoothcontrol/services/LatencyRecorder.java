@@ -0,0 +1,126 @@
+package com.fapr.bluetoothcontrol.services;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * CONNECTION TIMINGS OF EVERY DEVICE
+ * <p>
+ * The device services record how long each step of a connection took, measured
+ * with SystemClock.elapsedRealtime(), into one LatencyHistogram per device,
+ * transport and metric. Memory is fixed: the devices seen least recently are
+ * dropped past MAX_DEVICES.
+ * <p>
+ * export() writes every histogram as CSV so slow units can be found after a shift.
+ * Safe to use from any thread.
+ */
+public class LatencyRecorder {
+    public static final String TRANSPORT_LE = "LE";
+    public static final String TRANSPORT_CLASSIC = "CLASSIC";
+    public static final int METRIC_CONNECT = 0;
+    public static final int METRIC_BOND = 1;
+    public static final int METRIC_DISCOVERY = 2;
+    public static final int METRIC_CCCD = 3;
+    public static final int METRIC_FIRST_NOTIFICATION = 4;
+    public static final int METRIC_COMMAND = 5;
+    public static final int METRIC_WRITE = 6;
+    public static final int METRIC_SDP_CONNECT = 7;
+    public static final String[] METRIC_NAMES = {"connect", "bond", "discovery", "cccd", "first_notification", "command",
+            "write_queue", "sdp_connect"};
+    public static final int MAX_DEVICES = 64;
+    private static final double[] PERCENTILES = {50, 95, 99};
+    private static LatencyRecorder instance;
+
+    private final Map<String, LatencyHistogram[]> devices = new LinkedHashMap<String, LatencyHistogram[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LatencyHistogram[]> eldest) {
+            return size() > MAX_DEVICES;
+        }
+    };
+
+    private LatencyRecorder() {
+    }
+
+    @NonNull
+    public static synchronized LatencyRecorder getInstance() {
+        if (instance == null) instance = new LatencyRecorder();
+        return instance;
+    }
+
+    // PRIVATE METHODS
+    @NonNull
+    private static String key(@NonNull String transport, @NonNull String address) {
+        return transport + "/" + address;
+    }
+
+    // PUBLIC METHODS
+    public synchronized void record(@NonNull String transport, @NonNull String address, int metric, long millis) {
+        String key = key(transport, address);
+        LatencyHistogram[] histograms = devices.get(key);
+        if (histograms == null) {
+            histograms = new LatencyHistogram[METRIC_NAMES.length];
+            for (int i = 0; i < histograms.length; i++) histograms[i] = new LatencyHistogram();
+            devices.put(key, histograms);
+        }
+        histograms[metric].record(millis);
+    }
+
+    /** Samples of a metric, 0 if the device was never seen. */
+    public synchronized long getCount(@NonNull String transport, @NonNull String address, int metric) {
+        LatencyHistogram[] histograms = devices.get(key(transport, address));
+        return histograms == null ? 0 : histograms[metric].getCount();
+    }
+
+    /** Percentile (0-100) of a metric in milliseconds, -1 without samples. */
+    public synchronized long getPercentile(@NonNull String transport, @NonNull String address, int metric, double percentile) {
+        LatencyHistogram[] histograms = devices.get(key(transport, address));
+        return histograms == null ? -1 : histograms[metric].getPercentile(percentile);
+    }
+
+    /**
+     * One line per device and metric with samples:
+     * transport,address,metric,count,min,avg,p50,p95,p99,max
+     */
+    public synchronized void export(@NonNull Writer writer) throws IOException {
+        writer.write("transport,address,metric,count,min,avg,p50,p95,p99,max\n");
+        for (Map.Entry<String, LatencyHistogram[]> entry : devices.entrySet()) {
+            String[] key = entry.getKey().split("/", 2);
+            LatencyHistogram[] histograms = entry.getValue();
+            for (int metric = 0; metric < histograms.length; metric++) {
+                LatencyHistogram histogram = histograms[metric];
+                if (histogram.getCount() == 0) continue;
+
+                StringBuilder line = new StringBuilder();
+                line.append(key[0]).append(',').append(key[1]).append(',').append(METRIC_NAMES[metric])
+                        .append(',').append(histogram.getCount())
+                        .append(',').append(histogram.getMin())
+                        .append(',').append(histogram.getAverage());
+                for (double percentile : PERCENTILES) line.append(',').append(histogram.getPercentile(percentile));
+                line.append(',').append(histogram.getMax()).append('\n');
+                writer.write(line.toString());
+            }
+        }
+    }
+
+    /** Write the CSV to a file, returns false if it could not be written. */
+    public boolean export(@Nullable File file) {
+        if (file == null) return false;
+
+        try (Writer writer = new FileWriter(file)) {
+            export(writer);
+            return true;
+        } catch (IOException e) {
+            Log.v("LATENCY", "Export failed: " + e.getMessage());
+            return false;
+        }
+    }
+}
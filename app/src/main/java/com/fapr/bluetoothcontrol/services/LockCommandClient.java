@@ -0,0 +1,245 @@
+package com.fapr.bluetoothcontrol.services;
+
+import static com.fapr.bluetoothcontrol.services.ClassicLineDecoder.TYPE_ERROR;
+import static com.fapr.bluetoothcontrol.services.ClassicLineDecoder.TYPE_INFO;
+import static com.fapr.bluetoothcontrol.services.ClassicLineDecoder.TYPE_SETTING;
+import static com.fapr.bluetoothcontrol.services.LockRequestQueue.EXPECT_INFO;
+import static com.fapr.bluetoothcontrol.services.LockRequestQueue.EXPECT_NONE;
+import static com.fapr.bluetoothcontrol.services.LockRequestQueue.EXPECT_SETTINGS;
+import static com.fapr.bluetoothcontrol.services.LockRequestQueue.EXPECT_STATE;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fapr.bluetoothcontrol.models.LockResponseModel;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * SEND ELOCK COMMANDS AND MATCH THEIR ANSWERS
+ * <p>
+ * Each request says what it expects back: a lock state, the key/value lines of
+ * "settings" or "info", or nothing. Requests wait in a LockRequestQueue in the order
+ * they were sent, which decides the request every line from the ClassicLineDecoder
+ * belongs to. The device does not close a listing, so "settings" and
+ * "info" end when no line came for SETTLE milliseconds. Commands without an answer
+ * wait the same time for an error line before they count as done.
+ * <p>
+ * readStatus() sends state, settings and info together, the RfcommWriter puts them in
+ * one write, and answers with a single model.
+ * <p>
+ * Must be used from the main thread, ClassicDeviceService delivers lines there.
+ */
+public class LockCommandClient {
+    // PROPERTIES
+    public static final long REQUEST_TIMEOUT = 3000;
+    public static final long SETTLE = 250;
+    private final ClassicDeviceService device;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final LockRequestQueue<PendingRequest> pending = new LockRequestQueue<>();
+    private long roundTripTotal;
+    private int roundTrips;
+
+    // CONSTRUCTOR
+    public LockCommandClient(@NonNull ClassicDeviceService device) {
+        this.device = device;
+    }
+
+    // PRIVATE METHODS
+    private void send(@NonNull String command, int expect, @Nullable ResponseCallback callback) {
+        send(command, expect, expect == EXPECT_NONE ? SETTLE : REQUEST_TIMEOUT, callback);
+    }
+
+    private void send(@NonNull String command, int expect, long timeout, @Nullable ResponseCallback callback) {
+        PendingRequest request = new PendingRequest(command.trim(), expect, callback);
+        pending.add(request);
+        handler.postDelayed(request.expire, timeout);
+
+        if (!device.sendData(command)) finish(request, LockResponseModel.STATUS_NOT_SENT, null);
+    }
+
+    private void complete(@NonNull PendingRequest request) {
+        if (!pending.remove(request)) return;
+
+        handler.removeCallbacks(request.expire);
+        handler.removeCallbacks(request.settle);
+        long roundTrip = SystemClock.elapsedRealtime() - request.sent;
+        if (request.expect != EXPECT_NONE) {
+            roundTripTotal += roundTrip;
+            roundTrips++;
+            device.recordRoundTrip(roundTrip);
+        }
+        if (request.callback != null) {
+            request.callback.onResponse(new LockResponseModel(request.command, LockResponseModel.STATUS_OK,
+                    request.locked, request.values, null, roundTrip));
+        }
+    }
+
+    private void finish(@NonNull PendingRequest request, int status, @Nullable String error) {
+        if (!pending.remove(request)) return;
+
+        handler.removeCallbacks(request.expire);
+        handler.removeCallbacks(request.settle);
+        Log.v("ELOCK", "Request \"" + request.command + "\" failed: " + status + (error != null ? " " + error : ""));
+        if (request.callback != null) request.callback.onResponse(LockResponseModel.failed(request.command, status, error));
+    }
+
+    /** Join the three answers of readStatus(), the state decides the status. */
+    @NonNull
+    private static LockResponseModel combine(@NonNull LockResponseModel[] responses) {
+        LockResponseModel state = responses[0];
+        Map<String, String> values = new LinkedHashMap<>();
+        long roundTrip = -1;
+        for (LockResponseModel response : responses) {
+            values.putAll(response.getValues());
+            roundTrip = Math.max(roundTrip, response.getRoundTrip());
+        }
+        return new LockResponseModel("status", state.getStatus(), state.hasLockState() ? state.isLocked() : null,
+                values, state.getError(), roundTrip);
+    }
+
+    // PUBLIC METHODS
+    public void lock(@Nullable ResponseCallback callback) {
+        send(LockService.LOCK, EXPECT_STATE, callback);
+    }
+
+    public void unlock(@Nullable ResponseCallback callback) {
+        send(LockService.UNLOCK, EXPECT_STATE, callback);
+    }
+
+    public void readState(@Nullable ResponseCallback callback) {
+        send(LockService.GET_STATE, EXPECT_STATE, callback);
+    }
+
+    /** Same with its own timeout, used by the heartbeat. */
+    public void readState(long timeout, @Nullable ResponseCallback callback) {
+        send(LockService.GET_STATE, EXPECT_STATE, timeout, callback);
+    }
+
+    /** Use getMode() and getLockTimer() on the answer. */
+    public void readSettings(@Nullable ResponseCallback callback) {
+        send(LockService.GET_SETTINGS, EXPECT_SETTINGS, callback);
+    }
+
+    /** Use getFirmware() on the answer. */
+    public void readInfo(@Nullable ResponseCallback callback) {
+        send(LockService.GET_INFO, EXPECT_INFO, callback);
+    }
+
+    /** Manual (true) is the parking mode, auto locks again after the lock timer. */
+    public void setMode(boolean manual, @Nullable ResponseCallback callback) {
+        send(LockService.setMode(manual), EXPECT_NONE, callback);
+    }
+
+    public void setLockTimer(int seconds, @Nullable ResponseCallback callback) {
+        send(LockService.setLockTimer(seconds), EXPECT_NONE, callback);
+    }
+
+    /** The device only reports its state after this. */
+    public void enableSerial(@Nullable ResponseCallback callback) {
+        send(LockService.ENABLE_SERIAL, EXPECT_NONE, callback);
+    }
+
+    /**
+     * Read state, settings and info at once. The callback gets one model with the lock
+     * state and every key/value line, its status is the one of the state request.
+     */
+    public void readStatus(@NonNull ResponseCallback callback) {
+        LockResponseModel[] responses = new LockResponseModel[3];
+        int[] remaining = {responses.length};
+        for (int i = 0; i < responses.length; i++) {
+            int index = i;
+            ResponseCallback part = response -> {
+                responses[index] = response;
+                if (--remaining[0] == 0) callback.onResponse(combine(responses));
+            };
+            if (i == 0) readState(part);
+            else if (i == 1) readSettings(part);
+            else readInfo(part);
+        }
+    }
+
+    /**
+     * Give every lock state to the client, returns false when no request was waiting for it.
+     */
+    public boolean onLockState(boolean locked) {
+        PendingRequest request = pending.forState();
+        if (request == null) return false;
+
+        request.locked = locked;
+        complete(request);
+        return true;
+    }
+
+    /**
+     * Give every other line to the client, returns false when no request was waiting for it.
+     */
+    public boolean onLine(int type, @NonNull String key, @NonNull String value) {
+        if (type == TYPE_ERROR) {
+            PendingRequest request = pending.forError();
+            if (request == null) return false;
+
+            finish(request, LockResponseModel.STATUS_ERROR, key.isEmpty() ? value : key + ": " + value);
+            return true;
+        }
+        if (type != TYPE_SETTING && type != TYPE_INFO) return false;
+
+        PendingRequest request = pending.forLine(type);
+        if (request == null) return false;
+
+        request.values.put(key.toLowerCase(Locale.US), value);
+        handler.removeCallbacks(request.expire);
+        handler.removeCallbacks(request.settle);
+        handler.postDelayed(request.settle, SETTLE);
+        return true;
+    }
+
+    /** Fail every request still waiting, used when the link goes down. */
+    public void cancelAll() {
+        PendingRequest request;
+        while ((request = pending.peek()) != null) {
+            finish(request, LockResponseModel.STATUS_CANCELLED, null);
+        }
+    }
+
+    /** Requests waiting for an answer. */
+    public int getInFlight() {
+        return pending.size();
+    }
+
+    /** Average milliseconds from request to answer, -1 if nothing was answered yet. */
+    public long getAverageRoundTrip() {
+        return roundTrips > 0 ? roundTripTotal / roundTrips : -1;
+    }
+
+    private class PendingRequest extends LockRequestQueue.Request {
+        final ResponseCallback callback;
+        final long sent = SystemClock.elapsedRealtime();
+        final Runnable settle = () -> complete(this);
+        final Runnable expire = this::onTimeout;
+
+        PendingRequest(@NonNull String command, int expect, @Nullable ResponseCallback callback) {
+            super(command, expect);
+            this.callback = callback;
+        }
+
+        void onTimeout() {
+            if (expect == EXPECT_NONE) complete(this);
+            else finish(this, LockResponseModel.STATUS_TIMEOUT, null);
+        }
+    }
+
+    /**
+     * Called on the main thread with the answer or with a failed response.
+     */
+    public interface ResponseCallback {
+        void onResponse(@NonNull LockResponseModel response);
+    }
+}
@@ -0,0 +1,100 @@
+package com.fapr.bluetoothcontrol.services;
+
+import static com.fapr.bluetoothcontrol.services.ClassicLineDecoder.TYPE_SETTING;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * MATCH ELOCK ANSWERS TO THE REQUESTS WAITING FOR THEM
+ * <p>
+ * The correlation of LockCommandClient without timers or Bluetooth: requests wait in
+ * the order they were sent and each decoded message says which one it belongs to.
+ * <p>
+ * - A lock state goes to the oldest request expecting one.
+ * - A key/value line goes to the oldest listing of its kind, or of the other kind
+ *   when none waits, the decoder can not tell unknown keys apart.
+ * - An error line goes strictly to the oldest request not completed, whatever it
+ *   expects. The device answers in order, so a request behind it can not have
+ *   failed first.
+ * <p>
+ * Not thread safe, LockCommandClient uses it from the main thread only.
+ */
+public class LockRequestQueue<R extends LockRequestQueue.Request> {
+    // PROPERTIES
+    public static final int EXPECT_NONE = 0;
+    public static final int EXPECT_STATE = 1;
+    public static final int EXPECT_SETTINGS = 2;
+    public static final int EXPECT_INFO = 3;
+
+    private final ArrayDeque<R> pending = new ArrayDeque<>();
+
+    // PRIVATE METHODS
+    /** Oldest request waiting for this kind of answer. */
+    @Nullable
+    private R find(int expect) {
+        for (R request : pending) {
+            if (request.expect == expect) return request;
+        }
+        return null;
+    }
+
+    // PUBLIC METHODS
+    public void add(@NonNull R request) {
+        pending.add(request);
+    }
+
+    /** Returns false when the request was already answered or failed. */
+    public boolean remove(@NonNull R request) {
+        return pending.remove(request);
+    }
+
+    /** Oldest request, null when nothing is waiting. */
+    @Nullable
+    public R peek() {
+        return pending.peek();
+    }
+
+    /** Requests waiting for an answer. */
+    public int size() {
+        return pending.size();
+    }
+
+    /** Request a lock state answers, null when none waits for one. */
+    @Nullable
+    public R forState() {
+        return find(EXPECT_STATE);
+    }
+
+    /** Listing a ClassicLineDecoder.TYPE_SETTING or TYPE_INFO line belongs to. */
+    @Nullable
+    public R forLine(int type) {
+        R request = find(type == TYPE_SETTING ? EXPECT_SETTINGS : EXPECT_INFO);
+        return request != null ? request : find(type == TYPE_SETTING ? EXPECT_INFO : EXPECT_SETTINGS);
+    }
+
+    /** Request an error line answers, in strict send order. */
+    @Nullable
+    public R forError() {
+        return pending.peek();
+    }
+
+    /**
+     * What a request is waiting for and what it collected so far.
+     */
+    public static class Request {
+        final String command;
+        final int expect;
+        final Map<String, String> values = new LinkedHashMap<>();
+        Boolean locked;
+
+        public Request(@NonNull String command, int expect) {
+            this.command = command;
+            this.expect = expect;
+        }
+    }
+}
@@ -4,6 +4,14 @@ import androidx.annotation.NonNull;
 
 import org.jetbrains.annotations.Contract;
 
+import java.util.Locale;
+
+/**
+ * COMMANDS OF THE ELOCK TEXT PROTOCOL
+ * <p>
+ * Every command is one line ending in a newline. LockCommandClient sends them and
+ * parses the answers into LockResponseModel.
+ */
 public class LockService {
     public static final String LOCK = "lock\n";
     public static final String UNLOCK = "unlock\n";
@@ -11,14 +19,28 @@ public class LockService {
     //public static final String DISABLE_SERIAL = "serial 0\n";
     public static final String MODE_AUTO = "mode auto\n";
     public static final String MODE_MANUAL = "mode manual\n";
-    //public static final String GET_INFO = "info\n";
-    //public static final String GET_SETTINGS = "settings\n";
+    public static final String GET_INFO = "info\n";
+    public static final String GET_SETTINGS = "settings\n";
     public static final String GET_STATE = "output" + "state\n";
     //public static final String FACTORY_RESET = "factory" + "settings\n";
+    public static final int MAX_LOCK_TIMER = 9999;
 
     @NonNull
     @Contract(pure = true)
     public static String setLockTimer(String seconds) {
         return "lock" + "timer " + seconds + "\n";
     }
+
+    /** Lock timer in seconds, the device expects four digits. */
+    @NonNull
+    public static String setLockTimer(int seconds) {
+        if (seconds < 0 || seconds > MAX_LOCK_TIMER) throw new IllegalArgumentException("Lock timer out of range: " + seconds);
+        return setLockTimer(String.format(Locale.US, "%04d", seconds));
+    }
+
+    @NonNull
+    @Contract(pure = true)
+    public static String setMode(boolean manual) {
+        return manual ? MODE_MANUAL : MODE_AUTO;
+    }
 }
@@ -0,0 +1,198 @@
+package com.fapr.bluetoothcontrol.services;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * MOVE NOTIFICATIONS FROM THE BINDER THREAD TO THE SCREEN
+ * <p>
+ * The GATT callback only copies each packet into a NotificationRing. A consumer
+ * thread drains the ring and passes the frames it keeps to the main thread through
+ * a second ring of references, with at most one post waiting at a time. The post and
+ * the list given to the listener are reused, only the frames themselves are new.
+ * <p>
+ * Devices push their state again and again while nothing changes. Frames are keyed
+ * by their opcode ([status, opcode, payload...]) and one equal to the last frame of
+ * the same opcode is dropped here, so interleaved pushes of several values are
+ * suppressed too. Frames that arrive within ANSWER_WINDOW of a command are always
+ * published, they may be the answer to it.
+ */
+public class NotificationPump implements NotificationRing.PacketSink, Runnable {
+    // PROPERTIES
+    public static final int CAPACITY = 64;
+    // The largest ATT MTU is 517, a notification carries MTU - 3
+    public static final int MAX_PACKET = 514;
+    public static final long ANSWER_WINDOW = DoorCommandClient.REQUEST_TIMEOUT;
+    // Only a safety net, offer() wakes the consumer
+    private static final long PARK_TIMEOUT = 500000000L;
+    // Frames shorter than [status, opcode] share the last slot
+    private static final int NO_OPCODE = 256;
+    private final NotificationRing ring = new NotificationRing(CAPACITY, MAX_PACKET);
+    private final Handler handler;
+    private final FrameListener listener;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean waiting;
+    private volatile long answerUntil;
+
+    // Frames on their way to the main thread, written by the consumer and read by deliver
+    private final byte[][] outbox = new byte[CAPACITY][];
+    private volatile long outboxHead;
+    private volatile long outboxTail;
+    private final AtomicBoolean posted = new AtomicBoolean();
+    private final Runnable deliver = this::deliver;
+
+    // Consumer thread only
+    private final byte[][] last = new byte[NO_OPCODE + 1][];
+    private boolean answering;
+    private volatile long published;
+    private volatile long suppressed;
+    private volatile long lost;
+    private volatile long batches;
+
+    // Main thread only
+    private final List<byte[]> delivery = new ArrayList<>(CAPACITY);
+
+    // CONSTRUCTOR
+    /**
+     * @param handler thread where listener runs
+     */
+    public NotificationPump(@NonNull String name, @NonNull Handler handler, @NonNull FrameListener listener) {
+        this.handler = handler;
+        this.listener = listener;
+        this.thread = new Thread(this, "Notifications " + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // EVENTS
+    @Override
+    public void run() {
+        while (running) {
+            answering = SystemClock.elapsedRealtime() < answerUntil;
+            if (ring.drain(this) > 0) {
+                if (posted.compareAndSet(false, true)) handler.post(deliver);
+                continue;
+            }
+
+            // Say we are going to sleep before the last look, offer() unparks after publishing
+            waiting = true;
+            if (running && ring.isEmpty()) LockSupport.parkNanos(this, PARK_TIMEOUT);
+            waiting = false;
+        }
+    }
+
+    @Override
+    public void onPacket(@NonNull byte[] data, int length) {
+        int opcode = length >= 2 ? data[1] & 0xFF : NO_OPCODE;
+        if (!answering && isLast(opcode, data, length)) {
+            suppressed++;
+            return;
+        }
+
+        long head = outboxHead;
+        if (head - outboxTail == outbox.length) {
+            // The main thread is that far behind, the ring upstream would be dropping too
+            lost++;
+            return;
+        }
+
+        byte[] frame = new byte[length];
+        System.arraycopy(data, 0, frame, 0, length);
+        // Published frames are never written, the listener gets the same array
+        last[opcode] = frame;
+        outbox[(int) (head % outbox.length)] = frame;
+        outboxHead = head + 1;
+        published++;
+    }
+
+    // PRIVATE METHODS
+    private boolean isLast(int opcode, @NonNull byte[] data, int length) {
+        byte[] previous = last[opcode];
+        if (previous == null || previous.length != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (data[i] != previous[i]) return false;
+        }
+        return true;
+    }
+
+    /** Main thread, hands every frame in the outbox to the listener as one batch. */
+    private void deliver() {
+        // Cleared first, a frame added while draining posts again
+        posted.set(false);
+        long tail = outboxTail;
+        long head = outboxHead;
+        if (tail == head) return;
+
+        for (; tail < head; tail++) {
+            int index = (int) (tail % outbox.length);
+            delivery.add(outbox[index]);
+            outbox[index] = null;
+        }
+        outboxTail = tail;
+        batches++;
+        try {
+            listener.onFrames(delivery);
+        } finally {
+            delivery.clear();
+        }
+    }
+
+    // PUBLIC METHODS
+    /**
+     * Binder thread of the GATT callback. Never blocks, a full ring drops the packet.
+     */
+    public void offer(@Nullable byte[] data) {
+        if (data == null || !running) return;
+
+        ring.offer(data);
+        if (waiting) LockSupport.unpark(thread);
+    }
+
+    /** A command went out, publish everything until its answer had time to come. */
+    public void expectAnswer() {
+        answerUntil = SystemClock.elapsedRealtime() + ANSWER_WINDOW;
+    }
+
+    /** Stop the consumer, packets still in the ring are discarded. */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+        Log.v("NOTIFY", thread.getName() + ": " + published + " published in " + batches + " batches, "
+                + suppressed + " unchanged, " + (ring.getDropped() + lost) + " dropped, high water " + ring.getHighWater()
+                + " of " + ring.getCapacity());
+    }
+
+    public long getPublished() {
+        return published;
+    }
+
+    public long getSuppressed() {
+        return suppressed;
+    }
+
+    public long getDropped() {
+        return ring.getDropped() + lost;
+    }
+
+    public int getHighWater() {
+        return ring.getHighWater();
+    }
+
+    /**
+     * Frames of one batch, in arrival order. The list is reused once the call returns,
+     * the frames in it are not and must not be changed.
+     */
+    public interface FrameListener {
+        void onFrames(@NonNull List<byte[]> frames);
+    }
+}
@@ -0,0 +1,97 @@
+package com.fapr.bluetoothcontrol.services;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SINGLE PRODUCER, SINGLE CONSUMER RING OF PACKETS
+ * <p>
+ * Slots are allocated once, offer() copies the packet into the next free slot and
+ * publishes it by moving head, drain() hands every published slot to a sink and
+ * releases them by moving tail. Neither side locks or allocates. When the ring is
+ * full the new packet is dropped and counted.
+ * <p>
+ * offer() must always be called from the same thread, and drain() too.
+ */
+public class NotificationRing {
+    private final byte[][] slots;
+    private final int[] lengths;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long dropped;
+    private volatile int highWater;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     * @param slotSize largest packet kept, longer ones are cut
+     */
+    public NotificationRing(int capacity, int slotSize) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new byte[size][slotSize];
+        this.lengths = new int[size];
+        this.mask = size - 1;
+    }
+
+    // PUBLIC METHODS
+    /** Producer side, returns false when the packet was dropped. */
+    public boolean offer(@NonNull byte[] data) {
+        long position = head.get();
+        int used = (int) (position - tail.get());
+        if (used == slots.length) {
+            dropped++;
+            return false;
+        }
+
+        int index = (int) (position & mask);
+        int length = Math.min(data.length, slots[index].length);
+        System.arraycopy(data, 0, slots[index], 0, length);
+        lengths[index] = length;
+        // Volatile write, the consumer checks head right after saying it will sleep
+        head.set(position + 1);
+
+        if (used + 1 > highWater) highWater = used + 1;
+        return true;
+    }
+
+    /**
+     * Consumer side, pass every published packet to sink and free their slots.
+     * Returns the number of packets drained.
+     */
+    public int drain(@NonNull PacketSink sink) {
+        long position = tail.get();
+        long end = head.get();
+        for (long i = position; i < end; i++) {
+            int index = (int) (i & mask);
+            sink.onPacket(slots[index], lengths[index]);
+        }
+        tail.lazySet(end);
+        return (int) (end - position);
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /** Packets lost because the consumer fell behind. */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /** Most packets ever waiting at once. */
+    public int getHighWater() {
+        return highWater;
+    }
+
+    /**
+     * Receives a slot that is only valid during the call.
+     */
+    public interface PacketSink {
+        void onPacket(@NonNull byte[] data, int length);
+    }
+}
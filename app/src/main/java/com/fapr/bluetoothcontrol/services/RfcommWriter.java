@@ -0,0 +1,170 @@
+package com.fapr.bluetoothcontrol.services;
+
+import static com.fapr.bluetoothcontrol.services.LatencyRecorder.METRIC_WRITE;
+import static com.fapr.bluetoothcontrol.services.LatencyRecorder.TRANSPORT_CLASSIC;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * WRITE COMMANDS TO AN RFCOMM SOCKET FROM ITS OWN THREAD
+ * <p>
+ * offer() never blocks: it puts the command in a queue of CAPACITY and returns false
+ * when the queue is full, so a caller that outruns the link finds out instead of
+ * freezing the screen. The writer thread takes everything queued and joins it into
+ * one write of up to MAX_BATCH bytes. Only commands ending in a newline are joined,
+ * the device splits on it.
+ * <p>
+ * The time from offer() to the write returning goes to the LatencyRecorder. One
+ * writer per socket, stop() it before closing the socket.
+ */
+public class RfcommWriter implements Runnable {
+    // PROPERTIES
+    public static final int CAPACITY = 32;
+    public static final int MAX_BATCH = 512;
+    private final String address;
+    private final OutputStream outputStream;
+    private final FailureListener listener;
+    private final ArrayBlockingQueue<Command> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private final Command[] batch = new Command[CAPACITY];
+    private final byte[] buffer = new byte[MAX_BATCH];
+    private final Thread thread;
+    private final LatencyRecorder latency = LatencyRecorder.getInstance();
+    private volatile boolean running = true;
+    private volatile long rejected;
+    private volatile long commands;
+    private volatile long writes;
+    private volatile long lastLatency = -1;
+
+    // CONSTRUCTOR
+    public RfcommWriter(@NonNull String address, @NonNull OutputStream outputStream, @NonNull FailureListener listener) {
+        this.address = address;
+        this.outputStream = outputStream;
+        this.listener = listener;
+        this.thread = new Thread(this, "RFCOMM writer " + address);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // EVENTS
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                int count = 0;
+                batch[count++] = queue.take();
+                int length = batch[0].data.length;
+
+                Command next;
+                while (count < batch.length && (next = queue.peek()) != null
+                        && endsLine(batch[count - 1].data) && length + next.data.length <= MAX_BATCH) {
+                    batch[count++] = queue.poll();
+                    length += next.data.length;
+                }
+
+                write(count, length);
+            }
+        } catch (InterruptedException e) {
+            // stop()
+        }
+    }
+
+    // PRIVATE METHODS
+    private static boolean endsLine(@NonNull byte[] data) {
+        return data.length > 0 && data[data.length - 1] == '\n';
+    }
+
+    private void write(int count, int length) {
+        try {
+            if (count == 1) {
+                outputStream.write(batch[0].data);
+            } else {
+                int offset = 0;
+                for (int i = 0; i < count; i++) {
+                    System.arraycopy(batch[i].data, 0, buffer, offset, batch[i].data.length);
+                    offset += batch[i].data.length;
+                }
+                outputStream.write(buffer, 0, length);
+            }
+            outputStream.flush();
+        } catch (IOException e) {
+            if (running) {
+                Log.v("RFCOMM", "Write failed: " + e.getMessage());
+                listener.onWriteFailed();
+            }
+            clear(count);
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < count; i++) {
+            lastLatency = now - batch[i].enqueued;
+            latency.record(TRANSPORT_CLASSIC, address, METRIC_WRITE, lastLatency);
+        }
+        commands += count;
+        writes++;
+        clear(count);
+    }
+
+    private void clear(int count) {
+        for (int i = 0; i < count; i++) batch[i] = null;
+    }
+
+    // PUBLIC METHODS
+    /**
+     * Queue a command, returns false when the queue is full or the writer stopped.
+     */
+    public boolean offer(@NonNull byte[] data) {
+        if (!running) return false;
+        if (queue.offer(new Command(data))) return true;
+
+        rejected++;
+        return false;
+    }
+
+    /** Drop whatever is queued and end the thread, a write in progress still finishes. */
+    public void stop() {
+        if (!running) return;
+        running = false;
+        queue.clear();
+        thread.interrupt();
+        Log.v("RFCOMM", commands + " commands in " + writes + " writes, " + rejected + " rejected");
+    }
+
+    /** Commands waiting for the writer. */
+    public int getDepth() {
+        return queue.size();
+    }
+
+    /** Commands refused because the queue was full. */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /** Milliseconds the last command waited from offer() to the wire, -1 if none was written. */
+    public long getLastLatency() {
+        return lastLatency;
+    }
+
+    private static class Command {
+        final byte[] data;
+        final long enqueued = SystemClock.elapsedRealtime();
+
+        Command(@NonNull byte[] data) {
+            this.data = data;
+        }
+    }
+
+    /**
+     * Called on the writer thread.
+     */
+    public interface FailureListener {
+        void onWriteFailed();
+    }
+}
@@ -0,0 +1,152 @@
+package com.fapr.bluetoothcontrol.services;
+
+import androidx.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * SMOOTHED SIGNAL STRENGTH PER DEVICE
+ * <p>
+ * Keeps the last WINDOW raw samples of every device in one primitive ring buffer
+ * and a scalar Kalman estimate next to them. Slots are assigned once per address
+ * and recycled from the least recently seen device when the table is full, so
+ * recording a sample never allocates.
+ */
+public class RssiTracker {
+    public static final int NOT_TRACKED = Integer.MIN_VALUE;
+    public static final int WINDOW = 8;
+    // Calibrated for the TSR1-B at one meter, path loss exponent for open yards
+    private static final float TX_POWER = -59f;
+    private static final float PATH_LOSS = 2.2f;
+    private static final float PROCESS_NOISE = 0.5f;
+    private static final float MEASUREMENT_NOISE = 16f;
+
+    private final int capacity;
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final String[] addresses;
+    private final short[] samples;
+    private final int[] heads;
+    private final int[] counts;
+    private final float[] estimates;
+    private final float[] errors;
+    private final long[] lastSeen;
+
+    public RssiTracker(int capacity) {
+        this.capacity = capacity;
+        this.addresses = new String[capacity];
+        this.samples = new short[capacity * WINDOW];
+        this.heads = new int[capacity];
+        this.counts = new int[capacity];
+        this.estimates = new float[capacity];
+        this.errors = new float[capacity];
+        this.lastSeen = new long[capacity];
+    }
+
+    // PUBLIC METHODS
+    /**
+     * Add a sample, timestamp in elapsed realtime nanoseconds.
+     */
+    public void record(@NonNull String address, int rssi, long timestamp) {
+        if (rssi == Short.MIN_VALUE || rssi >= 0) return;
+
+        int slot = slotOf(address);
+        samples[slot * WINDOW + heads[slot]] = (short) rssi;
+        heads[slot] = (heads[slot] + 1) % WINDOW;
+        if (counts[slot] < WINDOW) counts[slot]++;
+        lastSeen[slot] = timestamp;
+
+        if (counts[slot] == 1) {
+            estimates[slot] = rssi;
+            errors[slot] = MEASUREMENT_NOISE;
+            return;
+        }
+
+        float error = errors[slot] + PROCESS_NOISE;
+        float gain = error / (error + MEASUREMENT_NOISE);
+        estimates[slot] += gain * (rssi - estimates[slot]);
+        errors[slot] = (1 - gain) * error;
+    }
+
+    /** Smoothed RSSI in dBm, NOT_TRACKED when the device has no samples. */
+    public int getSmoothed(@NonNull String address) {
+        Integer slot = slots.get(address);
+        if (slot == null) return NOT_TRACKED;
+        return Math.round(estimates[slot]);
+    }
+
+    /** Mean of the raw samples in the window, NOT_TRACKED when the device has no samples. */
+    public int getMean(@NonNull String address) {
+        Integer slot = slots.get(address);
+        if (slot == null) return NOT_TRACKED;
+
+        int sum = 0;
+        int base = slot * WINDOW;
+        for (int i = 0; i < counts[slot]; i++) {
+            sum += samples[base + i];
+        }
+        return sum / counts[slot];
+    }
+
+    /** Rough distance in meters from the smoothed RSSI, -1 when unknown. */
+    public float getDistance(@NonNull String address) {
+        Integer slot = slots.get(address);
+        if (slot == null) return -1f;
+        return (float) Math.pow(10, (TX_POWER - estimates[slot]) / (10 * PATH_LOSS));
+    }
+
+    /** Elapsed realtime nanoseconds of the last sample, 0 when unknown. */
+    public long getLastSeen(@NonNull String address) {
+        Integer slot = slots.get(address);
+        if (slot == null) return 0;
+        return lastSeen[slot];
+    }
+
+    public boolean isStale(@NonNull String address, long now, long maxAge) {
+        Integer slot = slots.get(address);
+        return slot == null || now - lastSeen[slot] > maxAge;
+    }
+
+    /**
+     * Order for proximity ranking, closest first.
+     */
+    public int compare(@NonNull String first, @NonNull String second) {
+        return Integer.compare(getSmoothed(second), getSmoothed(first));
+    }
+
+    public void clear() {
+        slots.clear();
+        for (int i = 0; i < capacity; i++) {
+            addresses[i] = null;
+            counts[i] = 0;
+            heads[i] = 0;
+        }
+    }
+
+    // PRIVATE METHODS
+    private int slotOf(@NonNull String address) {
+        Integer slot = slots.get(address);
+        if (slot != null) return slot;
+
+        int free = -1;
+        int oldest = 0;
+        for (int i = 0; i < capacity; i++) {
+            if (addresses[i] == null) {
+                free = i;
+                break;
+            }
+            if (lastSeen[i] < lastSeen[oldest]) oldest = i;
+        }
+
+        if (free < 0) {
+            free = oldest;
+            slots.remove(addresses[free]);
+        }
+
+        addresses[free] = address;
+        heads[free] = 0;
+        counts[free] = 0;
+        slots.put(address, free);
+        return free;
+    }
+}
@@ -0,0 +1,136 @@
+package com.fapr.bluetoothcontrol.services;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import androidx.annotation.NonNull;
+
+import com.fapr.bluetoothcontrol.models.AdvertisementModel;
+import com.fapr.bluetoothcontrol.models.ScanResultModel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * COALESCE SCAN RESULTS AND DELIVER THEM ONCE PER FRAME
+ * <p>
+ * Every advertisement updates the pooled entry of its device, and the devices that
+ * changed since the last frame are handed to the listener in one call from a
+ * Choreographer frame callback.
+ * <p>
+ * Results are offered from the scan thread. Each frame copies the dirty entries
+ * into a second pool owned by the main thread while holding the lock, so the
+ * listener never reads an entry the scan thread is writing.
+ */
+public class ScanBatcher implements Choreographer.FrameCallback {
+    private final Object lock = new Object();
+    private final Map<String, ScanResultModel> devices = new HashMap<>();
+    private final Map<String, ScanResultModel> published = new HashMap<>();
+    private final List<ScanResultModel> pending = new ArrayList<>();
+    private final List<ScanResultModel> delivered = new ArrayList<>();
+    private final ScanBatchListener listener;
+    private final Handler main = new Handler(Looper.getMainLooper());
+    private final Runnable postFrame = () -> Choreographer.getInstance().postFrameCallback(this);
+    private boolean scheduled;
+
+    public ScanBatcher(ScanBatchListener listener) {
+        this.listener = listener;
+    }
+
+    public void offer(String name, @NonNull String address, int rssi, int smoothedRssi, long timestamp, @NonNull AdvertisementModel advertisement) {
+        synchronized (lock) {
+            ScanResultModel item = obtain(address);
+            item.update(name, rssi, timestamp, advertisement);
+            item.setSmoothedRssi(smoothedRssi);
+            schedule(item);
+        }
+    }
+
+    public void offerClassic(String name, @NonNull String address, int rssi, int smoothedRssi, long timestamp) {
+        synchronized (lock) {
+            ScanResultModel item = obtain(address);
+            item.updateClassic(name, rssi, timestamp);
+            item.setSmoothedRssi(smoothedRssi);
+            schedule(item);
+        }
+    }
+
+    /** Forget every device, used when a new search starts. */
+    public void clear() {
+        synchronized (lock) {
+            pending.clear();
+            devices.clear();
+            published.clear();
+        }
+    }
+
+    /**
+     * Deliver what is pending without waiting for the frame, then run after. Used so
+     * the last results reach the screen before the search is reported finished.
+     */
+    public void flushThen(@NonNull Runnable after) {
+        main.post(() -> {
+            deliver();
+            after.run();
+        });
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        deliver();
+    }
+
+    // PRIVATE METHODS
+    private void deliver() {
+        synchronized (lock) {
+            scheduled = false;
+            for (int i = 0; i < pending.size(); i++) {
+                ScanResultModel item = pending.get(i);
+                item.setDirty(false);
+
+                ScanResultModel copy = published.get(item.getAddress());
+                if (copy == null) {
+                    copy = new ScanResultModel(item.getAddress());
+                    published.put(item.getAddress(), copy);
+                }
+                copy.copyFrom(item);
+                delivered.add(copy);
+            }
+            pending.clear();
+        }
+
+        if (delivered.isEmpty()) return;
+        listener.onScanBatch(delivered);
+        delivered.clear();
+    }
+
+    @NonNull
+    private ScanResultModel obtain(@NonNull String address) {
+        ScanResultModel item = devices.get(address);
+        if (item == null) {
+            item = new ScanResultModel(address);
+            devices.put(address, item);
+        }
+        return item;
+    }
+
+    private void schedule(@NonNull ScanResultModel item) {
+        if (!item.isDirty()) {
+            item.setDirty(true);
+            pending.add(item);
+        }
+
+        if (!scheduled) {
+            scheduled = true;
+            // Choreographer belongs to the looper that asks for it, always use the main one
+            main.post(postFrame);
+        }
+    }
+
+    public interface ScanBatchListener {
+        void onScanBatch(@NonNull List<ScanResultModel> results);
+    }
+}
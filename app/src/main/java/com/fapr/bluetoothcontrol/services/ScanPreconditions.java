@@ -0,0 +1,131 @@
+package com.fapr.bluetoothcontrol.services;
+
+import static com.fapr.bluetoothcontrol.utils.BluetoothUtil.*;
+
+import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.location.LocationManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.PowerManager;
+
+import androidx.annotation.NonNull;
+import androidx.core.app.ActivityCompat;
+
+/**
+ * CACHED STATE REQUIRED BEFORE A SEARCH
+ * <p>
+ * Power save and location follow their system broadcasts, so starting a search
+ * or handling a result only reads fields. Android has no broadcast for runtime
+ * permissions, they are read again by refresh(), which the screen calls when it
+ * resumes since that is where a permission dialog returns.
+ */
+public class ScanPreconditions {
+    public static final int NO_ERROR = -1;
+    private final Context context;
+    private volatile boolean scanPermission;
+    private volatile boolean connectPermission;
+    private volatile boolean locationPermission;
+    private volatile boolean powerSave;
+    private volatile boolean locationEnabled;
+    private boolean registered;
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, @NonNull Intent intent) {
+            if (PowerManager.ACTION_POWER_SAVE_MODE_CHANGED.equals(intent.getAction())) {
+                readPowerSave();
+                return;
+            }
+            readLocation();
+        }
+    };
+
+    public ScanPreconditions(@NonNull Context context) {
+        this.context = context;
+        refresh();
+    }
+
+    // PUBLIC METHODS
+    /**
+     * Follow power save and location changes, the receiver runs on the handler thread.
+     */
+    public void register(@NonNull Handler handler) {
+        if (registered) return;
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+        filter.addAction(LocationManager.PROVIDERS_CHANGED_ACTION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            filter.addAction(LocationManager.MODE_CHANGED_ACTION);
+        }
+        context.registerReceiver(receiver, filter, null, handler);
+        registered = true;
+    }
+
+    public void unregister() {
+        if (!registered) return;
+        context.unregisterReceiver(receiver);
+        registered = false;
+    }
+
+    /** Read every value again, permissions included. */
+    public void refresh() {
+        readPermissions();
+        readPowerSave();
+        readLocation();
+    }
+
+    /**
+     * First reason a search can not start, NO_ERROR when it can.
+     */
+    public int check() {
+        if (!scanPermission) return ERROR_SCAN_PERMISSION;
+        if (!locationPermission) return ERROR_LOCATION_PERMISSION;
+        if (powerSave) return ERROR_POWER_SAVE_MODE;
+        if (!locationEnabled) return ERROR_LOCATION_DISABLED;
+        return NO_ERROR;
+    }
+
+    /** BLUETOOTH_SCAN granted, always true before Android 12. */
+    public boolean canScan() {
+        return scanPermission;
+    }
+
+    /** BLUETOOTH_CONNECT granted, needed to read device names. Always true before Android 12. */
+    public boolean canConnect() {
+        return connectPermission;
+    }
+
+    // PRIVATE METHODS
+    private void readPermissions() {
+        scanPermission = Build.VERSION.SDK_INT < Build.VERSION_CODES.S || ActivityCompat.checkSelfPermission(
+                context, Manifest.permission.BLUETOOTH_SCAN) == PackageManager.PERMISSION_GRANTED;
+        connectPermission = Build.VERSION.SDK_INT < Build.VERSION_CODES.S || ActivityCompat.checkSelfPermission(
+                context, Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED;
+        locationPermission = ActivityCompat.checkSelfPermission(
+                context, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private void readPowerSave() {
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        powerSave = powerManager != null && powerManager.isPowerSaveMode();
+    }
+
+    private void readLocation() {
+        LocationManager locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+        boolean isLocationEnabled = false;
+        if (locationManager != null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                isLocationEnabled = locationManager.isLocationEnabled();
+            } else {
+                isLocationEnabled = locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER) ||
+                        locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER);
+            }
+        }
+        locationEnabled = isLocationEnabled;
+    }
+}
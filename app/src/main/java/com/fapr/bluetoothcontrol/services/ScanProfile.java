@@ -0,0 +1,161 @@
+package com.fapr.bluetoothcontrol.services;
+
+import static com.fapr.bluetoothcontrol.utils.AdvertisementParser.SENSOR_PAYLOAD_PREFIX;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * SCAN FILTERS AND SETTINGS FOR EACH USE CASE
+ * <p>
+ * Builds the ScanFilter list and ScanSettings given to BluetoothLeScanner so the
+ * Bluetooth controller drops foreign advertisements before they wake the app.
+ * The sensor filter matches the TSR1-B/ELOCK service data (UUID 0xBFFF, payload 0E 05),
+ * and authorized-only profiles add one filter per MAC from CLIENT_DEVICES.
+ */
+public class ScanProfile {
+    public static final ParcelUuid SENSOR_SERVICE = ParcelUuid.fromString("0000BFFF-0000-1000-8000-00805F9B34FB");
+    // Most controllers offload between 16 and 32 filters, past that the stack filters in software
+    public static final int MAX_HARDWARE_FILTERS = 16;
+    private static final String LOCK_PREFIX = "ANT-";
+
+    private final int scanMode;
+    private final int matchMode;
+    private final int numOfMatches;
+    private final long reportDelay;
+    private final boolean authorizedOnly;
+    private final String address;
+
+    public ScanProfile(int scanMode, int matchMode, int numOfMatches, long reportDelay, boolean authorizedOnly, @Nullable String address) {
+        this.scanMode = scanMode;
+        this.matchMode = matchMode;
+        this.numOfMatches = numOfMatches;
+        this.reportDelay = reportDelay;
+        this.authorizedOnly = authorizedOnly;
+        this.address = address;
+    }
+
+    // PROFILES
+    /** User pressed search: every sensor nearby, as fast as possible. */
+    @NonNull
+    public static ScanProfile discovery() {
+        return new ScanProfile(ScanSettings.SCAN_MODE_LOW_LATENCY, ScanSettings.MATCH_MODE_AGGRESSIVE,
+                ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT, 0, false, null);
+    }
+
+    /** Busy lots: the controller batches results and the UI gets one update per frame. */
+    @NonNull
+    public static ScanProfile batched() {
+        return new ScanProfile(ScanSettings.SCAN_MODE_LOW_LATENCY, ScanSettings.MATCH_MODE_AGGRESSIVE,
+                ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT, 500, false, null);
+    }
+
+    /**
+     * Like batched() but only units registered with the client: one filter per MAC while
+     * they fit in the controller, the AuthorizationIndex drops the rest on the scan path.
+     */
+    @NonNull
+    public static ScanProfile authorized() {
+        return new ScanProfile(ScanSettings.SCAN_MODE_LOW_LATENCY, ScanSettings.MATCH_MODE_AGGRESSIVE,
+                ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT, 500, true, null);
+    }
+
+    /** Looking for one known device, stop at the first advertisement. */
+    @NonNull
+    public static ScanProfile reconnect(@NonNull String address) {
+        return new ScanProfile(ScanSettings.SCAN_MODE_LOW_LATENCY, ScanSettings.MATCH_MODE_AGGRESSIVE,
+                ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT, 0, false, address);
+    }
+
+    // PUBLIC METHODS
+    public long getReportDelay() {
+        return reportDelay;
+    }
+
+    public boolean isAuthorizedOnly() {
+        return authorizedOnly;
+    }
+
+    @Nullable
+    public String getAddress() {
+        return address;
+    }
+
+    @NonNull
+    public List<ScanFilter> buildFilters(@Nullable Collection<String> authorizedDevices) {
+        List<ScanFilter> filters = new ArrayList<>();
+
+        if (address != null) {
+            filters.add(new ScanFilter.Builder().setDeviceAddress(address.toUpperCase(Locale.ROOT)).build());
+            return filters;
+        }
+
+        if (authorizedOnly && authorizedDevices != null && authorizedDevices.size() <= MAX_HARDWARE_FILTERS) {
+            for (String device : authorizedDevices) {
+                String mac = toAddress(device);
+                if (mac == null) continue;
+                filters.add(sensorFilter().setDeviceAddress(mac).build());
+            }
+            if (!filters.isEmpty()) return filters;
+        }
+
+        filters.add(sensorFilter().build());
+        return filters;
+    }
+
+    @NonNull
+    public ScanSettings buildSettings(@Nullable BluetoothAdapter adapter) {
+        ScanSettings.Builder builder = new ScanSettings.Builder().setScanMode(scanMode);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            builder.setMatchMode(matchMode);
+            builder.setNumOfMatches(numOfMatches);
+            builder.setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
+        }
+
+        // Report delay only works when the controller can hold results for us
+        if (reportDelay > 0 && adapter != null && adapter.isOffloadedScanBatchingSupported()) {
+            builder.setReportDelay(reportDelay);
+        }
+
+        return builder.build();
+    }
+
+    // PRIVATE METHODS
+    @NonNull
+    private static ScanFilter.Builder sensorFilter() {
+        return new ScanFilter.Builder().setServiceData(SENSOR_SERVICE, SENSOR_PAYLOAD_PREFIX, new byte[] {
+                (byte) 0xFF,
+                (byte) 0xFF
+        });
+    }
+
+    /**
+     * CLIENT_DEVICES holds normalized MACs (AABBCCDDEEFF), LE locks use the ANT- prefix.
+     */
+    @Nullable
+    private static String toAddress(@NonNull String device) {
+        String mac = device.startsWith(LOCK_PREFIX) ? device.substring(LOCK_PREFIX.length()) : device;
+        if (mac.length() != 12) return null;
+
+        StringBuilder builder = new StringBuilder(17);
+        for (int i = 0; i < 12; i += 2) {
+            if (i > 0) builder.append(':');
+            builder.append(mac, i, i + 2);
+        }
+
+        String address = builder.toString().toUpperCase(Locale.ROOT);
+        return BluetoothAdapter.checkBluetoothAddress(address) ? address : null;
+    }
+}
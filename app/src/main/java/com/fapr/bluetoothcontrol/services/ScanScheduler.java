@@ -0,0 +1,218 @@
+package com.fapr.bluetoothcontrol.services;
+
+import static com.fapr.bluetoothcontrol.utils.BluetoothUtil.LE_SCAN_PERIOD;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * DECIDE WHEN THE LE RADIO SCANS
+ * <p>
+ * One-shot searches stop as soon as the target device shows up, or once no new
+ * device has appeared for a few times the observed gap between discoveries. The
+ * window still stretches up to MAX_WINDOW while devices keep appearing.
+ * <p>
+ * Continuous mode keeps short scan windows separated by an interval that halves
+ * after a window with discoveries and doubles after an empty one. Android blocks
+ * apps that start more than 5 scans in 30 seconds, so cycles never go below 6 s.
+ */
+public class ScanScheduler {
+    public static final long MIN_WINDOW = 3000;
+    public static final long MAX_WINDOW = 20000;
+    public static final long MIN_QUIET = 2000;
+    public static final long DUTY_WINDOW = 2000;
+    public static final long MIN_INTERVAL = 6000;
+    public static final long MAX_INTERVAL = 30000;
+    private static final long CHECK_PERIOD = 500;
+    private static final int QUIET_FACTOR = 3;
+
+    private final Handler handler;
+    private final ScanRadio radio;
+    private final Set<String> seen = new HashSet<>();
+    private String target;
+    private boolean running;
+    private boolean continuous;
+    private boolean radioOn;
+    private long sessionStart;
+    private long windowStart;
+    private long lastDiscovery;
+    private long firstResult;
+    private long radioOnTime;
+    private long gapSum;
+    private int gaps;
+    private int windowDiscoveries;
+    private long interval = MIN_INTERVAL;
+
+    private final Runnable check = new Runnable() {
+        @Override
+        public void run() {
+            if (!radioOn) return;
+            if (windowEnded(SystemClock.elapsedRealtime())) {
+                endWindow();
+                return;
+            }
+            handler.postDelayed(this, CHECK_PERIOD);
+        }
+    };
+
+    private final Runnable nextWindow = this::startWindow;
+    private final Runnable targetFound = this::stop;
+
+    public ScanScheduler(@NonNull Handler handler, @NonNull ScanRadio radio) {
+        this.handler = handler;
+        this.radio = radio;
+    }
+
+    // PUBLIC METHODS
+    /**
+     * Scan once, stopping early when target (if any) is found or discovery dries up.
+     */
+    public void startOneShot(@Nullable String target) {
+        start(target, false);
+    }
+
+    /**
+     * Keep scanning in low duty windows until stop() is called.
+     */
+    public void startContinuous() {
+        start(null, true);
+    }
+
+    public void stop() {
+        if (!running) return;
+        handler.removeCallbacks(check);
+        handler.removeCallbacks(nextWindow);
+        handler.removeCallbacks(targetFound);
+        if (radioOn) stopRadio();
+        running = false;
+        radio.onScanFinished();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Report a relevant advertisement, returns true the first time the address is seen.
+     * Finding the target stops the scan on the next turn of the looper, so the caller
+     * delivers that result before onScanFinished().
+     */
+    public boolean onResult(@NonNull String address) {
+        if (!running) return false;
+        long now = SystemClock.elapsedRealtime();
+
+        if (!seen.add(address)) return false;
+
+        if (firstResult < 0) firstResult = now - sessionStart;
+        if (lastDiscovery > 0) {
+            gapSum += now - lastDiscovery;
+            gaps++;
+        }
+        lastDiscovery = now;
+        windowDiscoveries++;
+
+        if (target != null && target.equalsIgnoreCase(address)) {
+            handler.post(targetFound);
+        }
+        return true;
+    }
+
+    /** Milliseconds from start to the first discovery, -1 if nothing was found. */
+    public long getTimeToFirstResult() {
+        return firstResult;
+    }
+
+    /** Milliseconds the radio has been scanning in this session. */
+    public long getRadioOnTime() {
+        if (radioOn) return radioOnTime + SystemClock.elapsedRealtime() - windowStart;
+        return radioOnTime;
+    }
+
+    public int getDiscoveries() {
+        return seen.size();
+    }
+
+    /** Devices per second of radio time. */
+    public float getDiscoveryRate() {
+        long time = getRadioOnTime();
+        return time > 0 ? seen.size() * 1000f / time : 0f;
+    }
+
+    // PRIVATE METHODS
+    private void start(@Nullable String target, boolean continuous) {
+        if (running) return;
+        this.target = target;
+        this.continuous = continuous;
+        this.running = true;
+        this.sessionStart = SystemClock.elapsedRealtime();
+        this.lastDiscovery = 0;
+        this.firstResult = -1;
+        this.radioOnTime = 0;
+        this.gapSum = 0;
+        this.gaps = 0;
+        this.interval = MIN_INTERVAL;
+        seen.clear();
+        startWindow();
+    }
+
+    private void startWindow() {
+        if (!running) return;
+        windowStart = SystemClock.elapsedRealtime();
+        windowDiscoveries = 0;
+        radioOn = true;
+        radio.startRadio();
+        handler.postDelayed(check, CHECK_PERIOD);
+    }
+
+    private void stopRadio() {
+        radioOnTime += SystemClock.elapsedRealtime() - windowStart;
+        radioOn = false;
+        radio.stopRadio();
+    }
+
+    private boolean windowEnded(long now) {
+        long elapsed = now - windowStart;
+        long quiet = now - Math.max(windowStart, lastDiscovery);
+
+        if (continuous) {
+            // Let a productive window run up to twice its length
+            if (elapsed >= 2 * DUTY_WINDOW) return true;
+            return elapsed >= DUTY_WINDOW && quiet >= MIN_QUIET / 2;
+        }
+
+        if (elapsed >= MAX_WINDOW) return true;
+        return elapsed >= MIN_WINDOW && quiet >= quietThreshold();
+    }
+
+    private long quietThreshold() {
+        if (gaps == 0) return seen.isEmpty() ? LE_SCAN_PERIOD : MIN_QUIET * 2;
+        long threshold = QUIET_FACTOR * gapSum / gaps;
+        return Math.max(MIN_QUIET, Math.min(LE_SCAN_PERIOD, threshold));
+    }
+
+    private void endWindow() {
+        stopRadio();
+
+        if (!continuous) {
+            running = false;
+            radio.onScanFinished();
+            return;
+        }
+
+        if (windowDiscoveries > 0) interval = Math.max(MIN_INTERVAL, interval / 2);
+        else interval = Math.min(MAX_INTERVAL, interval * 2);
+        handler.postDelayed(nextWindow, interval);
+    }
+
+    public interface ScanRadio {
+        void startRadio();
+        void stopRadio();
+        void onScanFinished();
+    }
+}
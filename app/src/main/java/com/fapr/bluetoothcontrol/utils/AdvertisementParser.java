@@ -0,0 +1,114 @@
+package com.fapr.bluetoothcontrol.utils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fapr.bluetoothcontrol.models.AdvertisementModel;
+
+/**
+ * WALK LE ADVERTISEMENT RECORDS IN PLACE
+ * <p>
+ * Reads the AD structures (length, type, data) of a raw scan record and fills a
+ * reusable AdvertisementModel with offsets into the same array. Nothing is copied
+ * or allocated, so it can run for every advertisement of a busy scan.
+ * <p>
+ * The TSR1-B/ELOCK header (12 16 FF BF 0E 05) is a Service Data structure for the
+ * 16-bit UUID 0xBFFF whose payload starts with 0E 05.
+ */
+public class AdvertisementParser {
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_UUID16_PARTIAL = 0x02;
+    public static final int TYPE_UUID16_COMPLETE = 0x03;
+    public static final int TYPE_UUID128_PARTIAL = 0x06;
+    public static final int TYPE_UUID128_COMPLETE = 0x07;
+    public static final int TYPE_NAME_SHORT = 0x08;
+    public static final int TYPE_NAME_COMPLETE = 0x09;
+    public static final int TYPE_SERVICE_DATA16 = 0x16;
+    public static final int TYPE_MANUFACTURER = 0xFF;
+    public static final int SENSOR_SERVICE_UUID = 0xBFFF;
+    public static final int SENSOR_STRUCTURE_LENGTH = 0x12;
+    public static final byte[] SENSOR_PAYLOAD_PREFIX = new byte[] {(byte) 0x0E, (byte) 0x05};
+
+    /**
+     * Parse data into out. Returns true when the whole record was well formed.
+     */
+    public static boolean parse(@Nullable byte[] data, @NonNull AdvertisementModel out) {
+        out.reset(data);
+        if (data == null) return false;
+
+        int pos = 0;
+        while (pos < data.length) {
+            int length = data[pos] & 0xFF;
+            // A zero length marks the end of the significant part, the rest is padding
+            if (length == 0) break;
+
+            int end = pos + 1 + length;
+            if (end > data.length) {
+                out.setInvalid();
+                return false;
+            }
+
+            int type = data[pos + 1] & 0xFF;
+            int start = pos + 2;
+            int size = length - 1;
+
+            switch (type) {
+                case TYPE_FLAGS:
+                    if (size > 0) out.setFlags(data[start] & 0xFF);
+                    break;
+                case TYPE_UUID16_PARTIAL:
+                case TYPE_UUID16_COMPLETE:
+                    for (int i = start; i + 1 < end; i += 2) {
+                        out.addUuid16(readUint16(data, i));
+                    }
+                    break;
+                case TYPE_UUID128_PARTIAL:
+                case TYPE_UUID128_COMPLETE:
+                    for (int i = start; i + 15 < end; i += 16) {
+                        out.addUuid128(i);
+                    }
+                    break;
+                case TYPE_NAME_SHORT:
+                case TYPE_NAME_COMPLETE:
+                    out.setLocalName(start, size);
+                    break;
+                case TYPE_SERVICE_DATA16:
+                    if (size >= 2) {
+                        int uuid = readUint16(data, start);
+                        out.addUuid16(uuid);
+                        if (uuid == SENSOR_SERVICE_UUID && length == SENSOR_STRUCTURE_LENGTH
+                                && matches(data, start + 2, end, SENSOR_PAYLOAD_PREFIX)) {
+                            out.setSensorPayload(start + 2, size - 2);
+                        }
+                    }
+                    break;
+                case TYPE_MANUFACTURER:
+                    if (size >= 2) {
+                        out.setManufacturer(readUint16(data, start), start + 2, size - 2);
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            pos = end;
+        }
+
+        return true;
+    }
+
+    /**
+     * Compare pattern against data[offset..] without leaving the bounds given by end.
+     */
+    public static boolean matches(@NonNull byte[] data, int offset, int end, @NonNull byte[] pattern) {
+        if (offset < 0 || end > data.length || end - offset < pattern.length) return false;
+        for (int i = 0; i < pattern.length; i++) {
+            if (data[offset + i] != pattern[i]) return false;
+        }
+        return true;
+    }
+
+    private static int readUint16(@NonNull byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+    }
+}
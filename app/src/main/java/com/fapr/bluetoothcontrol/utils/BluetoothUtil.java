@@ -20,4 +20,6 @@ public class BluetoothUtil {
     public static final int ERROR_SEND_FAILED = 14;
     public static final int ERROR_POWER_SAVE_MODE = 15;
     public static final int ERROR_LOCATION_DISABLED = 16;
+    // Only the Classic inquiry of a combined search failed, the LE scan goes on
+    public static final int ERROR_CLASSIC_SCAN = 17;
 }
@@ -27,6 +27,9 @@ public class DataUtil {
     public static final String DATA_PAIRING_ENABLED = "DATA_PAIRING_ENABLED";
     public static  final String DATA_DEVICE_ADDRESS = "DATA_DEVICE_ADDRESS";
     public static final String DATA_DEVICE_NAME = "DATA_DEVICE_NAME";
+    public static final String RECONNECT_DATA = "RECONNECT_DATA";
+    public static final String GATT_CACHE = "GATT_CACHE";
+    public static final String RFCOMM_CHANNELS = "RFCOMM_CHANNELS";
     public static final String SENSOR_PASSWORD = "654321";
     public static final UUID SERVICE_UUID = UUID.fromString("27760001-999C-4D6A-9FC4-C7272BE10900");
     public static final UUID CHARACTERISTIC_UUID = UUID.fromString("27763561-999C-4D6A-9FC4-C7272BE10900");
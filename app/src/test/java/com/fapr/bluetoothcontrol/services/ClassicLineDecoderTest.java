@@ -0,0 +1,163 @@
+package com.fapr.bluetoothcontrol.services;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class ClassicLineDecoderTest {
+    private static final String SESSION = "Device Locked\r\n"
+            + "Settings\r\n"
+            + "mode: auto\r\n"
+            + "locktimer = 0005\r\n"
+            + "\r\n"
+            + "--- Info ---\n"
+            + "firmware: 2.1.4\n"
+            + "version: unknown\n"
+            + "\n"
+            + "Error: invalid command\n"
+            + "serial 1 enabled\n"
+            + "Device Unlocked\n";
+
+    private static final List<String> EXPECTED = Arrays.asList(
+            "lock:true",
+            "setting:mode=auto",
+            "setting:locktimer=0005",
+            "info:firmware=2.1.4",
+            "info:version=unknown",
+            "error:Error: invalid command",
+            "text:serial 1 enabled",
+            "lock:false");
+
+    private final List<String> events = new ArrayList<>();
+    private final ClassicLineDecoder decoder = new ClassicLineDecoder(new ClassicLineDecoder.Listener() {
+        @Override
+        public void onLockState(boolean locked) {
+            events.add("lock:" + locked);
+        }
+
+        @Override
+        public void onLine(int type, @NonNull String key, @NonNull String value) {
+            String[] names = {"setting", "info", "error", "text"};
+            events.add(names[type] + ":" + (key.isEmpty() ? value : key + "=" + value));
+        }
+    });
+
+    private static byte[] bytes(@NonNull String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Feed data cut at the given positions, always through the same reusable buffer. */
+    private void feedSplit(@NonNull byte[] data, int... cuts) {
+        byte[] buffer = new byte[data.length];
+        int start = 0;
+        for (int i = 0; i <= cuts.length; i++) {
+            int end = i < cuts.length ? cuts[i] : data.length;
+            System.arraycopy(data, start, buffer, 0, end - start);
+            decoder.feed(buffer, 0, end - start);
+            // The caller reuses its buffer, nothing may point into it
+            Arrays.fill(buffer, (byte) '#');
+            start = end;
+        }
+    }
+
+    @Test
+    public void wholeSession_inOneRead() {
+        feedSplit(bytes(SESSION));
+        assertEquals(EXPECTED, events);
+    }
+
+    @Test
+    public void everySingleCut() {
+        byte[] data = bytes(SESSION);
+        for (int cut = 1; cut < data.length; cut++) {
+            events.clear();
+            decoder.reset();
+            feedSplit(data, cut);
+            assertEquals("cut at " + cut, EXPECTED, events);
+        }
+    }
+
+    @Test
+    public void byteByByte() {
+        byte[] data = bytes(SESSION);
+        int[] cuts = new int[data.length - 1];
+        for (int i = 0; i < cuts.length; i++) cuts[i] = i + 1;
+
+        feedSplit(data, cuts);
+        assertEquals(EXPECTED, events);
+    }
+
+    @Test
+    public void randomCuts() {
+        byte[] data = bytes(SESSION);
+        Random random = new Random(7);
+        for (int round = 0; round < 500; round++) {
+            events.clear();
+            decoder.reset();
+            int[] cuts = random.ints(random.nextInt(12), 1, data.length).sorted().distinct().toArray();
+            feedSplit(data, cuts);
+            assertEquals("cuts " + Arrays.toString(cuts), EXPECTED, events);
+        }
+    }
+
+    @Test
+    public void statusSplitInsideTheWord() {
+        feedSplit(bytes("Device Unl"));
+        assertEquals(0, events.size());
+
+        feedSplit(bytes("ocked\r"));
+        feedSplit(bytes("\nDevice Locked\n"));
+        assertEquals(Arrays.asList("lock:false", "lock:true"), events);
+    }
+
+    @Test
+    public void crLfSplitAcrossReads_isOneLineEnd() {
+        // A blank line would close the settings section
+        feedSplit(bytes("settings\r\nmode: manual\r"), 0);
+        feedSplit(bytes("\nlocktimer: 0010\r\n"));
+        assertEquals(Arrays.asList("setting:mode=manual", "setting:locktimer=0010"), events);
+    }
+
+    @Test
+    public void blankLine_endsSection() {
+        feedSplit(bytes("settings\nbattery: 80\n\nbattery: 80\n"));
+        assertEquals(Arrays.asList("setting:battery=80", "info:battery=80"), events);
+    }
+
+    @Test
+    public void overlongLine_isDroppedWhole() {
+        StringBuilder noise = new StringBuilder();
+        for (int i = 0; i < ClassicLineDecoder.MAX_LINE + 40; i++) noise.append('x');
+        byte[] data = bytes(noise + "Device Unlocked\nDevice Locked\n");
+
+        feedSplit(data, 100, ClassicLineDecoder.MAX_LINE, ClassicLineDecoder.MAX_LINE + 50);
+        assertEquals(Arrays.asList("lock:true"), events);
+        assertEquals(1, decoder.getOverflows());
+    }
+
+    @Test
+    public void partialLineAtEnd_waitsForMore() {
+        feedSplit(bytes("mode: au"));
+        assertEquals(0, events.size());
+        assertEquals(0, decoder.getLines());
+
+        decoder.reset();
+        feedSplit(bytes("mode: auto\n"));
+        assertEquals(Arrays.asList("setting:mode=auto"), events);
+    }
+
+    @Test
+    public void offsetAndCount_areRespected() {
+        byte[] data = bytes("garbageDevice Locked\ngarbage");
+        decoder.feed(data, 7, 14);
+        assertEquals(Arrays.asList("lock:true"), events);
+    }
+}
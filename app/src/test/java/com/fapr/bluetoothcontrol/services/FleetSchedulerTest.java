@@ -0,0 +1,170 @@
+package com.fapr.bluetoothcontrol.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FleetSchedulerTest {
+    private static final int OP_A = 0x6d;
+    private static final int OP_B = 0x6c;
+
+    private final List<String> events = new ArrayList<>();
+    private final FleetScheduler.Driver driver = new FleetScheduler.Driver() {
+        @Override
+        public void open(@NonNull String address, int tries) {
+            events.add("open " + address + " " + tries);
+        }
+
+        @Override
+        public void send(@NonNull String address, int opcode) {
+            events.add("send " + address + " " + Integer.toHexString(opcode));
+        }
+
+        @Override
+        public void close(@NonNull String address) {
+            events.add("close " + address);
+        }
+
+        @Override
+        public void onChecked(@NonNull String address, boolean successful, int tries) {
+            events.add((successful ? "ok " : "failed ") + address + " " + tries);
+        }
+
+        @Override
+        public void onFinished() {
+            events.add("finished");
+        }
+    };
+
+    private FleetScheduler scheduler(int... opcodes) {
+        return new FleetScheduler(opcodes, driver);
+    }
+
+    private List<String> take() {
+        List<String> taken = new ArrayList<>(events);
+        events.clear();
+        return taken;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noCommands_rejected() {
+        scheduler();
+    }
+
+    @Test
+    public void opensUpToMaxConnecting() {
+        FleetScheduler scheduler = scheduler(OP_A);
+        scheduler.start(Arrays.asList("A", "B", "C", "A"), 6);
+
+        assertEquals(Arrays.asList("open A 1", "open B 1"), take());
+        assertEquals(3, scheduler.getTotal());
+
+        scheduler.onReady("A");
+        assertEquals(Arrays.asList("send A 6d", "open C 1"), take());
+    }
+
+    @Test
+    public void slotsLimitOpenLinks() {
+        FleetScheduler scheduler = scheduler(OP_A);
+        scheduler.start(Arrays.asList("A", "B", "C"), 1);
+        scheduler.onReady("A");
+
+        assertEquals(Arrays.asList("open A 1", "send A 6d"), take());
+        assertEquals(1, scheduler.getActiveLinks());
+
+        scheduler.onResponse("A", true);
+        assertEquals(Arrays.asList("close A", "ok A 1", "open B 1"), take());
+    }
+
+    @Test
+    public void readyLinksTakeTurns() {
+        FleetScheduler scheduler = scheduler(OP_A, OP_B);
+        scheduler.start(Arrays.asList("A", "B", "C"), 6);
+        scheduler.onReady("A");
+        scheduler.onReady("B");
+        scheduler.onReady("C");
+        take();
+
+        // Two on air, C waits for the first answer even though A has more to send
+        assertEquals(FleetScheduler.MAX_IN_FLIGHT, scheduler.getInFlight());
+        scheduler.onResponse("A", true);
+        assertEquals(Arrays.asList("send C 6d"), take());
+        scheduler.onResponse("B", true);
+        assertEquals(Arrays.asList("send A 6c"), take());
+    }
+
+    @Test
+    public void failedDeviceRetriedAtTheEnd() {
+        FleetScheduler scheduler = scheduler(OP_A);
+        scheduler.start(Arrays.asList("A", "B"), 1);
+        scheduler.onFailed("A");
+
+        assertEquals(Arrays.asList("open A 1", "close A", "open B 1"), take());
+
+        scheduler.onReady("B");
+        scheduler.onResponse("B", true);
+        assertEquals(Arrays.asList("send B 6d", "close B", "ok B 1", "open A 2"), take());
+
+        scheduler.onFailed("A");
+        assertEquals(Arrays.asList("close A", "failed A 2", "finished"), take());
+        assertFalse(scheduler.isRunning());
+        assertEquals(2, scheduler.getDone());
+    }
+
+    @Test
+    public void failedAnswerCountsAsFailure() {
+        FleetScheduler scheduler = scheduler(OP_A, OP_B);
+        scheduler.start(Arrays.asList("A"), 6);
+        scheduler.onReady("A");
+        scheduler.onResponse("A", false);
+
+        assertEquals(Arrays.asList("open A 1", "send A 6d", "close A", "open A 2"), take());
+        assertEquals(0, scheduler.getInFlight());
+    }
+
+    @Test
+    public void unavailableDeviceNotRetried() {
+        FleetScheduler scheduler = scheduler(OP_A);
+        scheduler.start(Arrays.asList("A"), 6);
+        scheduler.onUnavailable("A");
+
+        assertEquals(Arrays.asList("open A 1", "close A", "failed A 1", "finished"), take());
+    }
+
+    @Test
+    public void lateEventsAfterCloseIgnored() {
+        FleetScheduler scheduler = scheduler(OP_A, OP_B);
+        scheduler.start(Arrays.asList("A", "B"), 1);
+        scheduler.onReady("A");
+        scheduler.onFailed("A");
+        take();
+
+        // The answer and the disconnection of the closed link arrive after it
+        scheduler.onResponse("A", true);
+        scheduler.onFailed("A");
+        assertTrue(events.isEmpty());
+        assertEquals(0, scheduler.getInFlight());
+        assertEquals(1, scheduler.getActiveLinks());
+    }
+
+    @Test
+    public void stopClosesEveryLink() {
+        FleetScheduler scheduler = scheduler(OP_A);
+        scheduler.start(Arrays.asList("A", "B", "C"), 6);
+        scheduler.onReady("A");
+        take();
+        scheduler.stop();
+
+        assertEquals(Arrays.asList("close A", "close B", "close C", "finished"), take());
+        assertEquals(0, scheduler.getInFlight());
+        assertFalse(scheduler.isRunning());
+    }
+}
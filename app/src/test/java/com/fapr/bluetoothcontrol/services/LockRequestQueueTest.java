@@ -0,0 +1,110 @@
+package com.fapr.bluetoothcontrol.services;
+
+import static com.fapr.bluetoothcontrol.services.ClassicLineDecoder.TYPE_INFO;
+import static com.fapr.bluetoothcontrol.services.ClassicLineDecoder.TYPE_SETTING;
+import static com.fapr.bluetoothcontrol.services.LockRequestQueue.EXPECT_INFO;
+import static com.fapr.bluetoothcontrol.services.LockRequestQueue.EXPECT_NONE;
+import static com.fapr.bluetoothcontrol.services.LockRequestQueue.EXPECT_SETTINGS;
+import static com.fapr.bluetoothcontrol.services.LockRequestQueue.EXPECT_STATE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+public class LockRequestQueueTest {
+    private final LockRequestQueue<LockRequestQueue.Request> queue = new LockRequestQueue<>();
+
+    private LockRequestQueue.Request add(@NonNull String command, int expect) {
+        LockRequestQueue.Request request = new LockRequestQueue.Request(command, expect);
+        queue.add(request);
+        return request;
+    }
+
+    @Test
+    public void error_goesToFireAndForgetAheadOfState() {
+        LockRequestQueue.Request mode = add("mode manual", EXPECT_NONE);
+        add("getstate", EXPECT_STATE);
+
+        assertSame(mode, queue.forError());
+    }
+
+    @Test
+    public void error_goesToStateAheadOfFireAndForget() {
+        LockRequestQueue.Request state = add("getstate", EXPECT_STATE);
+        add("locktimer 0005", EXPECT_NONE);
+
+        assertSame(state, queue.forError());
+    }
+
+    @Test
+    public void error_goesToStateAheadOfListingNotStarted() {
+        LockRequestQueue.Request state = add("getstate", EXPECT_STATE);
+        add("settings", EXPECT_SETTINGS);
+
+        assertSame(state, queue.forError());
+    }
+
+    @Test
+    public void error_followsSendOrderAsRequestsComplete() {
+        LockRequestQueue.Request state = add("getstate", EXPECT_STATE);
+        LockRequestQueue.Request settings = add("settings", EXPECT_SETTINGS);
+        LockRequestQueue.Request info = add("info", EXPECT_INFO);
+
+        assertSame(state, queue.forState());
+        queue.remove(state);
+        assertSame(settings, queue.forError());
+        queue.remove(settings);
+        assertSame(info, queue.forError());
+        queue.remove(info);
+        assertNull(queue.forError());
+    }
+
+    @Test
+    public void state_skipsRequestsNotExpectingOne() {
+        add("mode manual", EXPECT_NONE);
+        add("settings", EXPECT_SETTINGS);
+        LockRequestQueue.Request state = add("lock", EXPECT_STATE);
+
+        assertSame(state, queue.forState());
+    }
+
+    @Test
+    public void lines_goToTheirListing() {
+        LockRequestQueue.Request settings = add("settings", EXPECT_SETTINGS);
+        LockRequestQueue.Request info = add("info", EXPECT_INFO);
+
+        assertSame(settings, queue.forLine(TYPE_SETTING));
+        assertSame(info, queue.forLine(TYPE_INFO));
+    }
+
+    @Test
+    public void unknownKey_goesToTheOtherListing() {
+        LockRequestQueue.Request settings = add("settings", EXPECT_SETTINGS);
+
+        // Outside a section the decoder calls keys it does not know info
+        assertSame(settings, queue.forLine(TYPE_INFO));
+    }
+
+    @Test
+    public void nothingWaiting_matchesNothing() {
+        add("mode manual", EXPECT_NONE);
+
+        assertNull(queue.forState());
+        assertNull(queue.forLine(TYPE_SETTING));
+    }
+
+    @Test
+    public void removedTwice_onlyFirstCounts() {
+        LockRequestQueue.Request state = add("getstate", EXPECT_STATE);
+
+        assertEquals(1, queue.size());
+        assertTrue(queue.remove(state));
+        assertFalse(queue.remove(state));
+        assertEquals(0, queue.size());
+    }
+}
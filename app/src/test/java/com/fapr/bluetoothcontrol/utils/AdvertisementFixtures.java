@@ -0,0 +1,53 @@
+package com.fapr.bluetoothcontrol.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the recorded scan records from advertisements.txt.
+ */
+class AdvertisementFixtures {
+    final String label;
+    final boolean sensor;
+    final byte[] data;
+
+    private AdvertisementFixtures(String label, boolean sensor, byte[] data) {
+        this.label = label;
+        this.sensor = sensor;
+        this.data = data;
+    }
+
+    static List<AdvertisementFixtures> load() throws IOException {
+        List<AdvertisementFixtures> fixtures = new ArrayList<>();
+        InputStream stream = AdvertisementFixtures.class.getClassLoader().getResourceAsStream("advertisements.txt");
+        if (stream == null) throw new IOException("Missing advertisements.txt");
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+
+                String[] parts = line.split("\\s+");
+                byte[] data = new byte[parts.length - 2];
+                for (int i = 2; i < parts.length; i++) {
+                    data[i - 2] = (byte) Integer.parseInt(parts[i], 16);
+                }
+                fixtures.add(new AdvertisementFixtures(parts[0], parts[1].equals("1"), data));
+            }
+        }
+        return fixtures;
+    }
+
+    static AdvertisementFixtures get(String label) throws IOException {
+        for (AdvertisementFixtures fixture : load()) {
+            if (fixture.label.equals(label)) return fixture;
+        }
+        throw new IOException("Missing fixture " + label);
+    }
+}
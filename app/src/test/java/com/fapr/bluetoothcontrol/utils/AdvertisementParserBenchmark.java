@@ -0,0 +1,65 @@
+package com.fapr.bluetoothcontrol.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import com.fapr.bluetoothcontrol.models.AdvertisementModel;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Rough JVM throughput check for the scan hot path. Not part of the unit suite,
+ * remove @Ignore to run it by hand. Logs ns per advertisement for the parser and
+ * for the old header check.
+ */
+@Ignore("Benchmark, run by hand")
+public class AdvertisementParserBenchmark {
+    private static final Logger LOG = Logger.getLogger("AdvertisementParserBenchmark");
+    private static final int WARMUP = 20_000;
+    private static final int ROUNDS = 200_000;
+
+    @Test
+    public void parseRecordedAdvertisements() throws IOException {
+        List<AdvertisementFixtures> fixtures = AdvertisementFixtures.load();
+        AdvertisementModel model = new AdvertisementModel();
+        int expected = 0;
+        for (AdvertisementFixtures fixture : fixtures) {
+            if (fixture.sensor) expected++;
+        }
+
+        run(fixtures, model, WARMUP);
+        long start = System.nanoTime();
+        int sensors = run(fixtures, model, ROUNDS);
+        long parseTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int headers = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            for (AdvertisementFixtures fixture : fixtures) {
+                if (DataUtil.startsWithHeader(fixture.data)) headers++;
+            }
+        }
+        long headerTime = System.nanoTime() - start;
+
+        long total = (long) ROUNDS * fixtures.size();
+        LOG.info("AdvertisementParser: " + (parseTime / total) + " ns/op, "
+                + "startsWithHeader: " + (headerTime / total) + " ns/op");
+        assertEquals(expected * (long) ROUNDS, sensors);
+        assertEquals(expected * (long) ROUNDS, headers);
+    }
+
+    private static int run(List<AdvertisementFixtures> fixtures, AdvertisementModel model, int rounds) {
+        int sensors = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (AdvertisementFixtures fixture : fixtures) {
+                AdvertisementParser.parse(fixture.data, model);
+                if (model.isSensor()) sensors++;
+            }
+        }
+        return sensors;
+    }
+}
@@ -0,0 +1,107 @@
+package com.fapr.bluetoothcontrol.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.fapr.bluetoothcontrol.models.AdvertisementModel;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class AdvertisementParserTest {
+    private final AdvertisementModel model = new AdvertisementModel();
+
+    @Test
+    public void sensorHeader_matchesLegacyCheck() throws IOException {
+        for (AdvertisementFixtures fixture : AdvertisementFixtures.load()) {
+            AdvertisementParser.parse(fixture.data, model);
+            assertEquals(fixture.label, fixture.sensor, model.isSensor());
+            assertEquals(fixture.label, DataUtil.startsWithHeader(fixture.data), model.isSensor());
+        }
+    }
+
+    @Test
+    public void sensor_exposesPayloadAndName() throws IOException {
+        AdvertisementFixtures fixture = AdvertisementFixtures.get("tsr1b_door");
+        assertTrue(AdvertisementParser.parse(fixture.data, model));
+
+        assertEquals(15, model.getSensorLength());
+        assertEquals(0x0E, model.getSensorByte(0));
+        assertEquals(0x05, model.getSensorByte(1));
+        assertEquals(0x01, model.getSensorByte(2));
+        assertTrue(model.hasUuid16(AdvertisementParser.SENSOR_SERVICE_UUID));
+        assertEquals(8, model.getNameLength());
+        assertEquals('T', fixture.data[model.getNameOffset()]);
+    }
+
+    @Test
+    public void manufacturerAndFlags() throws IOException {
+        AdvertisementFixtures fixture = AdvertisementFixtures.get("phone_apple");
+        assertTrue(AdvertisementParser.parse(fixture.data, model));
+
+        assertEquals(0x1A, model.getFlags());
+        assertEquals(0x004C, model.getManufacturerId());
+        assertEquals(7, model.getManufacturerLength());
+        assertEquals(0x10, fixture.data[model.getManufacturerOffset()]);
+        assertFalse(model.isSensor());
+    }
+
+    @Test
+    public void serviceUuids() throws IOException {
+        AdvertisementFixtures fixture = AdvertisementFixtures.get("watch_services");
+        assertTrue(AdvertisementParser.parse(fixture.data, model));
+
+        assertEquals(2, model.getUuid16Count());
+        assertEquals(0x180D, model.getUuid16(0));
+        assertEquals(0x180F, model.getUuid16(1));
+        assertEquals(1, model.getUuid128Count());
+        assertEquals((byte) 0x9E, fixture.data[model.getUuid128Offset(0)]);
+        assertEquals(AdvertisementModel.NOT_PRESENT, model.getManufacturerId());
+    }
+
+    @Test
+    public void truncatedRecord_keepsParsedFields() throws IOException {
+        AdvertisementFixtures fixture = AdvertisementFixtures.get("truncated");
+        assertFalse(AdvertisementParser.parse(fixture.data, model));
+
+        assertFalse(model.isValid());
+        assertEquals(0x06, model.getFlags());
+        assertEquals(AdvertisementModel.NOT_PRESENT, model.getManufacturerId());
+    }
+
+    @Test
+    public void emptyAndNullRecords() {
+        assertFalse(AdvertisementParser.parse(null, model));
+        assertFalse(model.isSensor());
+
+        assertTrue(AdvertisementParser.parse(new byte[0], model));
+        assertFalse(model.isSensor());
+    }
+
+    @Test
+    public void reuse_clearsPreviousResult() throws IOException {
+        AdvertisementParser.parse(AdvertisementFixtures.get("tsr1b_door").data, model);
+        AdvertisementParser.parse(AdvertisementFixtures.get("beacon_eddystone").data, model);
+
+        assertFalse(model.isSensor());
+        assertEquals(AdvertisementModel.NOT_PRESENT, model.getNameOffset());
+        assertTrue(model.hasUuid16(0xFEAA));
+    }
+
+    @Test
+    public void copy_survivesReuseOfTheSource() throws IOException {
+        AdvertisementFixtures fixture = AdvertisementFixtures.get("tsr1b_door");
+        AdvertisementParser.parse(fixture.data, model);
+        AdvertisementModel copy = new AdvertisementModel();
+        copy.copyFrom(model);
+        AdvertisementParser.parse(AdvertisementFixtures.get("beacon_eddystone").data, model);
+
+        assertTrue(copy.isSensor());
+        assertEquals(0x0E, copy.getSensorByte(0));
+        assertEquals(8, copy.getNameLength());
+        assertTrue(copy.hasUuid16(AdvertisementParser.SENSOR_SERVICE_UUID));
+        assertFalse(copy.hasUuid16(0xFEAA));
+    }
+}